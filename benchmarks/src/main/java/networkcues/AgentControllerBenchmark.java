@@ -0,0 +1,160 @@
+package networkcues;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Training, interrogation and boosts of the supervisor network, on a fixed set of random trade patterns.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class AgentControllerBenchmark {
+
+	public static final long SEED = 1;
+	public static final int PATTERNS = 1024;
+	public static final int AGENTS = 200;
+
+	@State(Scope.Thread)
+	public static class Patterns {
+
+		double [][][] inputs;
+		double [][][] outputs;
+		int next;
+
+		@Setup(Level.Trial)
+		public void createPatterns() {
+			RandomStream random = new RandomStream(SEED);
+			this.inputs = new double [PATTERNS][1][NeuralNetInference.INPUTS];
+			this.outputs = new double [PATTERNS][1][1];
+			for (int p = 0; p < PATTERNS; p++) {
+				for (int i = 0; i < NeuralNetInference.INPUTS; i++) {
+					this.inputs[p][0][i] = random.nextDouble();
+				}
+				this.outputs[p][0][0] = random.nextDouble() > 0.5 ? 1 : 0;
+			}
+			this.next = 0;
+		}
+
+		int next() {
+			this.next = (this.next + 1) % PATTERNS;
+			return this.next;
+		}
+	}
+
+	/**
+	 * A controller in the warm-up, which trains a new network with weights drawn from SEED in every iteration.
+	 */
+	@State(Scope.Thread)
+	public static class Controller {
+
+		AgentController controller;
+
+		@Setup(Level.Iteration)
+		public void createController() {
+			this.controller = newController();
+		}
+	}
+
+	/**
+	 * A controller after the warm-up, which answers interrogations with the inference engine.
+	 */
+	@State(Scope.Thread)
+	public static class Trained {
+
+		AgentController controller;
+
+		@Setup(Level.Trial)
+		public void createController(Patterns patterns) {
+			this.controller = newTrainedController(patterns);
+		}
+	}
+
+	/**
+	 * A controller in the given mode after the warm-up, which has already answered enough interrogations to look for
+	 * boosts, and in IMPROVE_WITH_BOOSTS mode remembers them in the boost cache. The BOOSTS streams of the AGENTS
+	 * agents are looked up once, as the agents do.
+	 */
+	@State(Scope.Thread)
+	public static class Boosts {
+
+		@Param({ "FULL_BOOSTS", "RANDOM_BOOSTS", "NO_BOOSTS", "IMPROVE_WITH_BOOSTS" })
+		public AgentController.Mode mode;
+
+		AgentController controller;
+		RandomStream [] streams;
+
+		@Setup(Level.Trial)
+		public void createController(Patterns patterns) {
+			this.controller = newTrainedController(patterns);
+			this.controller.setMode(this.mode);
+			RandomStreams randomStreams = new RandomStreams(SEED);
+			this.streams = new RandomStream [AGENTS];
+			for (int i = 0; i < AGENTS; i++) {
+				this.streams[i] = randomStreams.get(RandomStreams.Phase.BOOSTS, i);
+			}
+		}
+	}
+
+	private static AgentController newController() {
+		AgentController controller = new AgentController(ModelFixture.createNeuralNetPath(), new RandomStreams(SEED));
+		controller.setOutput(ModelFixture.NO_OUTPUT);
+		ModelFixture.setWeights(controller.getNeuralNet(), SEED);
+		return controller;
+	}
+
+	private static AgentController newTrainedController(Patterns patterns) {
+		AgentController controller = newController();
+		controller.endWarmUp();
+		for (int p = 0; p <= 10; p++) {
+			controller.interrogate(patterns.inputs[p], patterns.outputs[p]);
+		}
+		if (!controller.isUsingInference()) {
+			throw new IllegalStateException("The controller doesn't use the inference engine after the warm-up.");
+		}
+		return controller;
+	}
+
+	@Benchmark
+	public void train(Controller state, Patterns patterns) {
+		int p = patterns.next();
+		state.controller.train(patterns.inputs[p], patterns.outputs[p]);
+	}
+
+	@Benchmark
+	public boolean interrogate(Trained state, Patterns patterns) {
+		int p = patterns.next();
+		return state.controller.interrogate(patterns.inputs[p], patterns.outputs[p]);
+	}
+
+	/**
+	 * Boosts for a pattern of one of AGENTS agents, as the agents ask for them (through the boost cache).
+	 */
+	@Benchmark
+	public double [] getBoosts(Boosts state, Patterns patterns) {
+		int p = patterns.next();
+		return state.controller.getBoosts(p % AGENTS, (p + 1) % AGENTS, state.streams[p % AGENTS], patterns.inputs[p]);
+	}
+
+	/**
+	 * Boosts for a pattern without the boost cache.
+	 */
+	@Benchmark
+	public double [] getBoostsUncached(Boosts state, Patterns patterns) {
+		return state.controller.getBoosts(patterns.inputs[patterns.next()]);
+	}
+}
@@ -0,0 +1,124 @@
+package networkcues;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Checks that a run continued from a checkpoint ends exactly where the same run without the checkpoint ends: runs the
+ * model for n ticks straight, then runs it again to tick k, checkpoints it, restores the checkpoint and runs it on to
+ * tick n. The captures of both runs at tick n and their trade journals have to be the same byte for byte.
+ * Both runs keep their networks, journals and logs in a temporary directory, which is removed if the check passes.
+ * The check is built with the benchmarks, so it doesn't ship with the model.
+ *
+ * Usage: CheckpointCheck [--ticks n] [--at k] [--agents n] [--seed n] [--sparse]
+ */
+public class CheckpointCheck {
+
+	private final Path directory;
+	private final int agents;
+	private final boolean sparse;
+	private final long seed;
+
+	public CheckpointCheck(Path directory, int agents, boolean sparse, long seed) {
+		this.directory = directory;
+		this.agents = agents;
+		this.sparse = sparse;
+		this.seed = seed;
+	}
+
+	/**
+	 * Runs both runs and returns whether they ended the same, printing the first difference if they didn't.
+	 */
+	public boolean check(long ticks, long at) throws IOException, InterruptedException, ExecutionException {
+
+		// Run straight to the end
+		NetworkCuesBuilder builder = this.createBuilder("straight");
+		HeadlessRunner straight = new HeadlessRunner(builder);
+		straight.build();
+		run(straight, ticks);
+		byte [] expected = Checkpoint.capture(straight);
+		straight.end();
+		builder.getOutput().close();
+
+		// Run to the checkpoint
+		builder = this.createBuilder("restored");
+		HeadlessRunner first = new HeadlessRunner(builder);
+		first.build();
+		run(first, at);
+		String checkpoint = this.directory.resolve("restored.checkpoint").toString();
+		Checkpoint.save(first, checkpoint).get();
+		first.end();
+		builder.getOutput().close();
+
+		// Continue from the checkpoint to the end
+		builder = this.createBuilder("restored");
+		HeadlessRunner restored = Checkpoint.restore(checkpoint, builder);
+		run(restored, ticks);
+		byte [] actual = Checkpoint.capture(restored);
+		restored.end();
+		builder.getOutput().close();
+
+		boolean same = compare("capture at tick " + ticks, expected, actual);
+		return compare("trade journal", Files.readAllBytes(this.directory.resolve("straight.journal")),
+				Files.readAllBytes(this.directory.resolve("restored.journal"))) && same;
+	}
+
+	private NetworkCuesBuilder createBuilder(String name) throws IOException {
+		NetworkCuesBuilder builder = new NetworkCuesBuilder();
+		builder.setAgentCount(this.agents);
+		builder.setSparseCommunication(this.sparse);
+		builder.setSeed(this.seed);
+		builder.setNeuralNetPath(this.directory.resolve(name + NeuralNetWeights.EXTENSION).toString());
+		builder.setTradeJournalPath(this.directory.resolve(name + ".journal").toString());
+		builder.setOutput(new PrintStream(this.directory.resolve(name + ".log").toFile(), "UTF-8"));
+		return builder;
+	}
+
+	private static void run(HeadlessRunner runner, long ticks) {
+		while (runner.getTick() < ticks) {
+			runner.step();
+		}
+	}
+
+	private static boolean compare(String what, byte [] expected, byte [] actual) {
+		int length = Math.min(expected.length, actual.length);
+		for (int i = 0; i < length; i++) {
+			if (expected[i] != actual[i]) {
+				System.out.println(what + " differs at byte " + i + " of " + expected.length);
+				return false;
+			}
+		}
+		if (expected.length != actual.length) {
+			System.out.println(what + " has " + actual.length + " bytes instead of " + expected.length);
+			return false;
+		}
+		System.out.println(what + " is the same (" + expected.length + " bytes)");
+		return true;
+	}
+
+	public static void main(String [] args) throws IOException, InterruptedException, ExecutionException {
+		Arguments arguments = new Arguments("CheckpointCheck [--ticks n] [--at k] [--agents n] [--seed n] [--sparse]", args, "--sparse");
+		long ticks = arguments.get("--ticks", Long::valueOf, (long) HeadlessRunner.DEFAULT_TICKS);
+		long at = arguments.get("--at", Long::valueOf, ticks / 2);
+		int agents = arguments.get("--agents", Integer::valueOf, NetworkCuesBuilder.COUNT_AGENT);
+		long seed = arguments.get("--seed", Long::valueOf, 1L);
+		boolean sparse = arguments.has("--sparse");
+		arguments.checkUnknown();
+
+		Path directory = Files.createTempDirectory("networkcues-checkpoint");
+		boolean same = new CheckpointCheck(directory, agents, sparse, seed).check(ticks, at);
+		if (!same) {
+			System.out.println("The runs are kept in " + directory);
+			System.exit(1);
+		}
+
+		for (File file : directory.toFile().listFiles()) {
+			file.delete();
+		}
+		Files.delete(directory);
+	}
+}
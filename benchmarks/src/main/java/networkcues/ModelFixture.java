@@ -0,0 +1,150 @@
+package networkcues;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.joone.engine.FullSynapse;
+import org.joone.engine.Layer;
+import org.joone.engine.Matrix;
+import org.joone.net.NeuralNet;
+
+import repast.simphony.context.Context;
+import repast.simphony.context.DefaultContext;
+import repast.simphony.space.graph.Network;
+import repast.simphony.space.graph.RepastEdge;
+import repast.simphony.util.collections.IndexedIterable;
+
+/**
+ * A model built headlessly with {@link NetworkCuesBuilder}, without a Repast schedule. The complete communication network
+ * grows with the square of the number of agents, so models above COMPLETE_NETWORK_LIMIT agents are built sparse.
+ *
+ * Every fixture of the same size is the same model: it's built from SEED, and its controller starts after the warm-up
+ * with weights drawn from SEED, so the trades interrogate the network instead of training it. The controller keeps its
+ * network in a temporary file and prints nothing.
+ */
+class ModelFixture {
+
+	static final int COMPLETE_NETWORK_LIMIT = 2000;
+	static final long SEED = 1;
+
+	// Discards the statistics of the models
+	static final PrintStream NO_OUTPUT = new PrintStream(new OutputStream() {
+		@Override
+		public void write(int b) {
+		}
+	});
+
+	final Context<Object> context;
+	final NetworkCuesBuilder builder;
+	final List<Agent> agents;
+	final Market market;
+	final AgentController controller;
+	final Network<Object> tradeNetwork;
+
+	ModelFixture(int agentCount) {
+		this.builder = new NetworkCuesBuilder();
+		this.builder.setAgentCount(agentCount);
+		this.builder.setSparseCommunication(agentCount > COMPLETE_NETWORK_LIMIT);
+		this.builder.setSeed(SEED);
+		this.builder.setNeuralNetPath(createNeuralNetPath());
+		this.builder.setOutput(NO_OUTPUT);
+		this.context = this.builder.build(new DefaultContext<Object>("networkcues"));
+
+		this.agents = new ArrayList<Agent>(agentCount);
+		IndexedIterable<Object> collection = this.context.getObjects(Agent.class);
+		for (int i = 0; i < collection.size(); i++) {
+			this.agents.add((Agent) collection.get(i));
+		}
+		this.market = this.builder.getMarket();
+		this.controller = this.builder.getAgentController();
+		this.tradeNetwork = (Network<Object>) this.context.getProjection("trade network");
+
+		setWeights(this.controller.getNeuralNet(), SEED);
+		this.controller.endWarmUp();
+	}
+
+	/**
+	 * A network file in a new temporary directory, which doesn't exist yet, so the controller starts from a new network
+	 * and doesn't touch the network of the model.
+	 */
+	static String createNeuralNetPath() {
+		try {
+			Path directory = Files.createTempDirectory("networkcues-benchmark");
+			directory.toFile().deleteOnExit();
+			Path path = directory.resolve("neuralnet" + NeuralNetWeights.EXTENSION);
+			path.toFile().deleteOnExit();
+			return path.toString();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Replaces the random weights and biases that JOONE gave the network with weights drawn from the seed.
+	 */
+	static void setWeights(NeuralNet nnet, long seed) {
+		RandomStream random = new RandomStream(seed);
+		for (int l = 1; l < NeuralNetWeights.LAYER_NAMES.length; l++) {
+			Layer layer = nnet.getLayer(NeuralNetWeights.LAYER_NAMES[l]);
+			setValues(layer.getBias(), random);
+			for (Object o : layer.getAllInputs()) {
+				if (o instanceof FullSynapse) {
+					setValues(((FullSynapse) o).getWeights(), random);
+				}
+			}
+		}
+	}
+
+	private static void setValues(Matrix matrix, RandomStream random) {
+		for (int i = 0; i < matrix.value.length; i++) {
+			for (int j = 0; j < matrix.value[i].length; j++) {
+				matrix.value[i][j] = random.nextDoubleFromTo(-0.2, 0.2);
+				if (matrix.delta != null) {
+					matrix.delta[i][j] = 0;
+				}
+			}
+		}
+	}
+
+	/**
+	 * The first half of a trading tick: the market closes and every agent picks what to sell and buy.
+	 */
+	void prepareForTrade() {
+		this.market.close();
+		for (Agent agent : this.agents) {
+			agent.prepareForTrade();
+		}
+		this.market.open();
+	}
+
+	/**
+	 * The second half of a trading tick: every agent looks for a partner, which makes the trades.
+	 */
+	void findTradingPartners() {
+		for (Agent agent : this.agents) {
+			agent.findTradingPartner();
+		}
+		this.market.resolveTrades();
+		this.controller.flushTraining();
+	}
+
+	/**
+	 * Trades made in the last tick.
+	 */
+	@SuppressWarnings("unchecked")
+	List<TradeEdge<Object>> getTrades() {
+		List<TradeEdge<Object>> trades = new ArrayList<TradeEdge<Object>>();
+		for (RepastEdge<Object> edge : this.tradeNetwork.getEdges()) {
+			if (edge instanceof TradeEdge && ((TradeEdge<Object>) edge).isTrade()) {
+				trades.add((TradeEdge<Object>) edge);
+			}
+		}
+		return trades;
+	}
+}
@@ -0,0 +1,76 @@
+package networkcues;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import repast.simphony.context.space.graph.NetworkFactory;
+import repast.simphony.context.space.graph.NetworkFactoryFinder;
+import repast.simphony.space.graph.Network;
+
+/**
+ * Building the kinship and communication networks of a model whose agents already exist. Every invocation builds into
+ * new, empty networks.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class NetworkBuildBenchmark {
+
+	private static final String COMMUNICATION_NETWORK = "benchmark communication network";
+	private static final String KINSHIP_NETWORK = "benchmark kinship network";
+
+	@Param({ "200", "2000", "20000" })
+	public int agents;
+
+	private ModelFixture model;
+	private CommunicationIndex communication;
+	private Network<Object> kinNetwork;
+
+	@Setup(Level.Trial)
+	public void buildModel() {
+		this.model = new ModelFixture(this.agents);
+	}
+
+	@Setup(Level.Invocation)
+	public void createNetworks() {
+		NetworkFactory networkFactory = NetworkFactoryFinder.createNetworkFactory(null);
+		this.communication = new CommunicationIndex(networkFactory.createNetwork(COMMUNICATION_NETWORK, this.model.context, false, new CommunicationEdgeCreator<Object>()));
+		this.kinNetwork = networkFactory.createNetwork(KINSHIP_NETWORK, this.model.context, false);
+	}
+
+	@TearDown(Level.Invocation)
+	public void removeNetworks() {
+		this.model.context.removeProjection(COMMUNICATION_NETWORK);
+		this.model.context.removeProjection(KINSHIP_NETWORK);
+	}
+
+	@Benchmark
+	public Network<Object> buildKinShipNetwork() {
+		return this.model.builder.buildKinShipNetwork(this.model.context, this.kinNetwork);
+	}
+
+	/**
+	 * Also builds the kinship network and the indices, as the model does.
+	 */
+	@Benchmark
+	public CommunicationIndex buildCommunicationNetwork() {
+		this.model.builder.buildCommunicationNetwork(this.model.context, this.communication, this.kinNetwork);
+		return this.communication;
+	}
+}
@@ -0,0 +1,169 @@
+package networkcues;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Checks that a {@link PairContext} gives the same answers as the {@link CommunicationIndex} getters it replaces, with
+ * the trade history on the edges of the complete network, in a PairStateTable and in the sparse network.
+ *
+ * For every mode two identical models are run for a few ticks. Then the same random trades are recorded through the
+ * index in one model and through a pair context in the other, with the pairs half between neighbors and half between
+ * any two agents. Before and after every trade the getters of the index in the first model are compared with the pair
+ * context in the second, and at the end the trade history of both models has to be the same byte for byte.
+ * The controllers of the models keep their networks in a temporary directory. The check is built with the benchmarks,
+ * so it doesn't ship with the model.
+ *
+ * Usage: PairContextCheck [--agents n] [--ticks n] [--trades n] [--seed n]
+ */
+public class PairContextCheck {
+
+	public static final int SPARSE_AGENTS = 2500;
+
+	private final int agents;
+	private final long ticks;
+	private final int trades;
+	private final long seed;
+	private final Path directory;
+	private int mismatches;
+
+	public PairContextCheck(Path directory, int agents, long ticks, int trades, long seed) {
+		this.directory = directory;
+		this.agents = agents;
+		this.ticks = ticks;
+		this.trades = trades;
+		this.seed = seed;
+	}
+
+	/**
+	 * Checks one mode and returns the number of mismatches, printing the first few.
+	 */
+	public int check(String name, boolean sparse, boolean pairStateOffHeap) throws IOException {
+		this.mismatches = 0;
+		int agents = sparse ? Math.max(this.agents, SPARSE_AGENTS) : this.agents;
+		HeadlessRunner byIndex = this.run("index", agents, sparse, pairStateOffHeap);
+		HeadlessRunner byPair = this.run("pair", agents, sparse, pairStateOffHeap);
+		CommunicationIndex index = byIndex.getBuilder().getCommunication();
+		CommunicationIndex pairs = byPair.getBuilder().getCommunication();
+		SpatialIndex spatialIndex = byIndex.getBuilder().getSpatialIndex();
+
+		RandomStream random = new RandomStream(this.seed);
+		for (int t = 0; t < this.trades; t++) {
+
+			// Pick a pair, half of the time among the neighbors
+			int i = random.nextIntFromTo(0, agents - 1);
+			int [] neighbors = spatialIndex.getNeighborPositions(i, NetworkCuesBuilder.LEN_NEIGHBORHOOD);
+			int j = random.nextIntFromTo(0, agents - 2);
+			if (neighbors.length > 0 && random.nextDouble() < 0.5) {
+				j = neighbors[random.nextIntFromTo(0, neighbors.length - 1)];
+			} else if (j >= i) {
+				j++;
+			}
+			Agent a1 = spatialIndex.getAgent(i);
+			Agent b1 = spatialIndex.getAgent(j);
+			Agent a2 = byPair.getBuilder().getSpatialIndex().getAgent(i);
+			Agent b2 = byPair.getBuilder().getSpatialIndex().getAgent(j);
+			TradeEdge.TradeResult aResult = TradeEdge.TradeResult.values()[random.nextIntFromTo(0, 3)];
+			TradeEdge.TradeResult bResult = TradeEdge.TradeResult.values()[random.nextIntFromTo(0, 3)];
+
+			// Record the trade as both agents would, through the index in one model and through the pair in the other
+			PairContext pair = pairs.getPairContext(a2, b2);
+			this.compare(name + " before trade " + t, index, a1, b1, pair, a2, b2);
+			index.recordTrade(a1, b1, aResult);
+			index.recordTrade(b1, a1, bResult);
+			pair.recordTrade(a2, aResult);
+			pair.recordTrade(b2, bResult);
+			this.compare(name + " after trade " + t, index, a1, b1, pair, a2, b2);
+			this.compare(name + " after trade " + t + " (new pair)", index, b1, a1, pairs.getPairContext(b2, a2), b2, a2);
+		}
+
+		if (!Arrays.equals(tradeHistory(index), tradeHistory(pairs))) {
+			this.report(name + ": the trade history differs after " + this.trades + " trades");
+		}
+		System.out.println(name + ": " + this.trades + " trades, " + this.mismatches + " mismatches");
+		return this.mismatches;
+	}
+
+	private HeadlessRunner run(String name, int agents, boolean sparse, boolean pairStateOffHeap) {
+		NetworkCuesBuilder builder = new NetworkCuesBuilder();
+		builder.setAgentCount(agents);
+		builder.setSparseCommunication(sparse);
+		builder.setPairStateOffHeap(pairStateOffHeap);
+		builder.setSeed(this.seed);
+		builder.setNeuralNetPath(this.directory.resolve(name + NeuralNetWeights.EXTENSION).toString());
+		builder.setOutput(ModelFixture.NO_OUTPUT);
+
+		HeadlessRunner runner = new HeadlessRunner(builder);
+		runner.build();
+		while (runner.getTick() < this.ticks) {
+			runner.step();
+		}
+		runner.end();
+		return runner;
+	}
+
+	/**
+	 * Compares the getters of the index for agent1 and agent2 with the pair context of the same agents in the other model.
+	 */
+	private void compare(String when, CommunicationIndex index, Agent agent1, Agent agent2, PairContext pair, Agent pairAgent1, Agent pairAgent2) {
+		String what = when + " between " + agent1.id + " and " + agent2.id + ": ";
+		if (Double.compare(index.getNormalizedDistance(agent1, agent2), pair.getNormalizedDistance()) != 0) {
+			this.report(what + "normalized distance " + pair.getNormalizedDistance() + " instead of " + index.getNormalizedDistance(agent1, agent2));
+		}
+		double kinshipCoefficient = PairContext.getKinshipCoefficient(index.getKinship(agent1, agent2));
+		if (Double.compare(kinshipCoefficient, pair.getKinshipCoefficient()) != 0) {
+			this.report(what + "kinship coefficient " + pair.getKinshipCoefficient() + " instead of " + kinshipCoefficient);
+		}
+		if (index.getNumberOfTrades(agent1, agent2) != pair.getNumberOfTrades()) {
+			this.report(what + pair.getNumberOfTrades() + " trades instead of " + index.getNumberOfTrades(agent1, agent2));
+		}
+		if (index.getLastTradeResult(agent1, agent2) != pair.getLastTradeResult(pairAgent1)) {
+			this.report(what + "last trade result " + pair.getLastTradeResult(pairAgent1) + " instead of " + index.getLastTradeResult(agent1, agent2));
+		}
+		if (index.getLastTradeResult(agent2, agent1) != pair.getLastTradeResult(pairAgent2)) {
+			this.report(what + "last trade result of the partner " + pair.getLastTradeResult(pairAgent2) + " instead of " + index.getLastTradeResult(agent2, agent1));
+		}
+	}
+
+	private void report(String message) {
+		if (this.mismatches++ < 10) {
+			System.out.println(message);
+		}
+	}
+
+	private static byte [] tradeHistory(CommunicationIndex communication) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		communication.writeState(out);
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	public static void main(String [] args) throws IOException {
+		Arguments arguments = new Arguments("PairContextCheck [--agents n] [--ticks n] [--trades n] [--seed n]", args);
+		int agents = arguments.get("--agents", Integer::valueOf, NetworkCuesBuilder.COUNT_AGENT);
+		long ticks = arguments.get("--ticks", Long::valueOf, 100L);
+		int trades = arguments.get("--trades", Integer::valueOf, 10000);
+		long seed = arguments.get("--seed", Long::valueOf, 1L);
+		arguments.checkUnknown();
+
+		Path directory = Files.createTempDirectory("networkcues-pairs");
+		PairContextCheck check = new PairContextCheck(directory, agents, ticks, trades, seed);
+		int mismatches = check.check("edges", false, false)
+				+ check.check("pair state table", false, true)
+				+ check.check("sparse", true, false);
+
+		for (File file : directory.toFile().listFiles()) {
+			file.delete();
+		}
+		Files.delete(directory);
+		if (mismatches > 0) {
+			System.exit(1);
+		}
+	}
+}
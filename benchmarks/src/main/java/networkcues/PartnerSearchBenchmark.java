@@ -0,0 +1,69 @@
+package networkcues;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Partner search of a whole trading tick: every agent of the model looks for a partner once. Every iteration starts
+ * from a new model after the warm-up of the controller, so the iterations search the same sequence of markets.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class PartnerSearchBenchmark {
+
+	@Param({ "200", "2000", "20000" })
+	public int agents;
+
+	private ModelFixture model;
+
+	@Setup(Level.Iteration)
+	public void buildModel() {
+		this.model = new ModelFixture(this.agents);
+	}
+
+	@Setup(Level.Invocation)
+	public void prepareForTrade() {
+		this.model.prepareForTrade();
+	}
+
+	/**
+	 * Agent.findTradingPartner for every agent, including the trades it makes.
+	 */
+	@Benchmark
+	public void findTradingPartner() {
+		for (Agent agent : this.model.agents) {
+			agent.findTradingPartner();
+		}
+	}
+
+	/**
+	 * Only the search of the market, without making the trades.
+	 */
+	@Benchmark
+	public void findPartner(Blackhole blackhole) {
+		for (Agent agent : this.model.agents) {
+			Agent partner = this.model.market.findPartner(agent);
+			if (partner != null) {
+				this.model.market.setPartners(agent, partner);
+			}
+			blackhole.consume(partner);
+		}
+	}
+}
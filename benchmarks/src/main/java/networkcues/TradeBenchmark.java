@@ -0,0 +1,53 @@
+package networkcues;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Making all the trades of a tick again, after the warm-up of the controller. Every iteration starts from a new model,
+ * so the trade history is the same in every iteration. The pairs are matched up once per iteration, and every
+ * invocation trades them once more, including the interrogation of the controller.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class TradeBenchmark {
+
+	@Param({ "200", "2000", "20000" })
+	public int agents;
+
+	private ModelFixture model;
+	private List<TradeEdge<Object>> trades;
+
+	@Setup(Level.Iteration)
+	public void matchPartners() {
+		this.model = new ModelFixture(this.agents);
+		this.model.prepareForTrade();
+		this.model.findTradingPartners();
+		this.trades = this.model.getTrades();
+	}
+
+	@Benchmark
+	public void makeTrade() {
+		for (TradeEdge<Object> trade : this.trades) {
+			trade.makeTrade();
+		}
+		this.model.controller.flushTraining();
+	}
+}
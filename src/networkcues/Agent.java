@@ -1,12 +1,14 @@
 package networkcues;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 import networkcues.TradeEdge.TradeResult;
 import repast.simphony.context.Context;
 import repast.simphony.engine.schedule.ScheduledMethod;
-import repast.simphony.random.RandomHelper;
 import repast.simphony.space.continuous.NdPoint;
 import repast.simphony.space.graph.Network;
-import repast.simphony.space.graph.RepastEdge;
 import repast.simphony.util.ContextUtils;
 import repast.simphony.util.collections.IndexedIterable;
 
@@ -22,30 +24,48 @@ public class Agent {
 	protected int numOfRatingsReceived;
 	protected double averageRating;
 	protected Good selling;
-	protected Good [] buying;
+	protected final int [] buyingTypes;
+	protected int buyingMask;
 	protected TradeEdge.TradeResult lastTradeResult;
+	protected double lastPrediction;
 
 	private AgentController supervisor;
-	private Network <Object> commNetwork;
+	private CommunicationIndex communication;
 	private Network <Object> tradeNetwork;
+	private Market market;
+
+	// Scratch pool of the types that can be bought, shuffled in place every time the agent prepares for trade
+	private final int [] typePool;
+	private final RandomStream tradeRandom;
+	private final RandomStream boostsRandom;
 	
-	public Agent(int id, NdPoint location, Network <Object> commNetwork, Network <Object> tradeNetwork, AgentController supervisor) {
+	public Agent(int id, NdPoint location, RandomStreams randomStreams, CommunicationIndex communication, Network <Object> tradeNetwork, Market market, AgentController supervisor) {
+		this(id, location, randomStreams, communication, tradeNetwork, market, supervisor, Profile.COOPERATION_PERCENTAGE);
+	}
+	
+	public Agent(int id, NdPoint location, RandomStreams randomStreams, CommunicationIndex communication, Network <Object> tradeNetwork, Market market, AgentController supervisor, double cooperationPercentage) {
 		
 		// fixed values (these will never change)
 		this.id = id;
-		this.profile = new Profile();
+		this.profile = new Profile(randomStreams, id, cooperationPercentage);
 		this.location = location;
+		this.tradeRandom = randomStreams.get(RandomStreams.Phase.TRADE, id);
+		this.boostsRandom = randomStreams.get(RandomStreams.Phase.BOOSTS, id);
 
 		// default initialization values
 		this.neighborhoodSize = 0;
 		this.numOfRatingsReceived = 0;
 		this.averageRating = 0;
 		this.lastTradeResult = TradeResult.CC;
+		this.lastPrediction = Double.NaN;
+		this.buyingTypes = new int [Agent.LEN_BUYING];
+		this.typePool = new int [Good.LEN_TYPE - 1];
 
 		// References to the the context objects
 		this.supervisor = supervisor;
-		this.commNetwork = commNetwork;
+		this.communication = communication;
 		this.tradeNetwork = tradeNetwork;
+		this.market = market;
 		
 		// Add the agent to a group
 		supervisor.addAgentToGroup(this.profile.getGroupID());
@@ -53,46 +73,65 @@ public class Agent {
 	
 	@ScheduledMethod(start = 1, interval = 2)
 	public void prepareForTrade() {
+		long start = Metrics.start();
 		
-		// reset the trade network
-		this.tradeNetwork.removeEdges();
+		// reset the trade network (the market does this once for all the agents)
+		if (this.market == null) {
+			this.tradeNetwork.removeEdges();
+		}
 		
 		// sell a random type
-		int good_type = RandomHelper.nextIntFromTo(0, Good.LEN_TYPE - 1);
-		this.selling = new Good(good_type);
+		int good_type = this.tradeRandom.nextIntFromTo(0, Good.LEN_TYPE - 1);
+		if (this.selling == null) {
+			this.selling = new Good(good_type);
+		} else {
+			this.selling.type = good_type;
+		}
 		
-		// create a new array of items to buy
-		this.buying = new Good [Agent.LEN_BUYING];
+		// list the types other than the one this agent sells
+		for (int type = 0, n = 0; type < Good.LEN_TYPE; type++) {
+			if (type != good_type) {
+				this.typePool[n++] = type;
+			}
+		}
 		
-		// populate the buying array with random goods
+		// buy distinct random types by shuffling the first part of the pool
+		this.buyingMask = 0;
 		for (int i = 0; i < Agent.LEN_BUYING; i++) {
+			int j = this.tradeRandom.nextIntFromTo(i, this.typePool.length - 1);
+			int type = this.typePool[j];
+			this.typePool[j] = this.typePool[i];
+			this.typePool[i] = type;
 			
-			// assume that it's not a valid type
-			boolean valid_type = false;
-			
-			while (!valid_type){
-				
-				// choose a random type
-				good_type = RandomHelper.nextIntFromTo(0, Good.LEN_TYPE - 1);
-
-				// Don't add good of the same type of this.selling
-				valid_type = good_type != this.selling.type;
-				
-				// Don't add good of the same type of this.buying
-				for (int j = 0; valid_type && j < i - 1; j++) {
-					valid_type = good_type != this.buying[j].type;
-				}
-				
-				// add a new good to this.buy
-				if (valid_type) {
-					this.buying[i] = new Good(good_type);
-				}
-			}
+			this.buyingTypes[i] = type;
+			this.buyingMask |= 1 << type;
 		}
+		
+		Metrics.PREPARE_FOR_TRADE.stop(start);
 	}
 	
 	@ScheduledMethod(start = 2, interval = 2)
 	public void findTradingPartner() {
+		long start = Metrics.start();
+		this.searchForTradingPartner();
+		Metrics.FIND_TRADING_PARTNER.stop(start);
+	}
+	
+	private void searchForTradingPartner() {
+
+		// Let the market find a partner (if it has indexed the agents for this tick and didn't already match them up)
+		if (this.market != null && this.market.isOpen()) {
+			if (!this.market.isMatchingPerAgent()) {
+				return;
+			}
+			
+			Agent partner = this.market.findPartner(this);
+			if (partner != null) {
+				this.market.setPartners(this, partner);
+				tradeNetwork.addEdge(this, partner);
+			}
+			return;
+		}
 
 		// Determine if the agent already has a partner
 		@SuppressWarnings("unchecked")
@@ -106,37 +145,27 @@ public class Agent {
 		if(degree == 0) {
 			// list all the agents from the context
 			IndexedIterable<Object> collection = context.getObjects(Agent.class);
+			int scanned = 0;
 			for (Object o : collection) {
 				
 				// Only consider agents who have not yet partnered
 				Agent other = (Agent) o;
+				scanned++;
 				if (tradeNetwork.getDegree(other) > 0) {
 					continue;
 				}
 				
 				// Make sure that other agent can buy this agent's selling good
-				boolean wantsWhatImSelling = false;
-				for (int i = 0; i < other.buying.length; i++) {
-					if(this.selling.type == other.buying[i].type) {
-						wantsWhatImSelling = true;
-						break;
-					}
-				}
+				boolean wantsWhatImSelling = (other.buyingMask & (1 << this.selling.type)) != 0;
 				
 				// Make sure that this agent can buy other agent's selling good
-				boolean hasWhatImBuying = false;
-				for (int i = 0; i < this.buying.length; i++) {
-					if(other.selling.type == this.buying[i].type) {
-						hasWhatImBuying = true;
-						break;
-					}
-				}
+				boolean hasWhatImBuying = (this.buyingMask & (1 << other.selling.type)) != 0;
 				
 				// choose the closest valid partner
 				if (wantsWhatImSelling && hasWhatImBuying) { 
-					RepastEdge<Object> edge = commNetwork.getEdge(this, other);
-					if (edge != null && edge.getWeight() < distanceToPartner) {
-						distanceToPartner = edge.getWeight();
+					double weight = this.communication.getWeight(this, other);
+					if (weight < distanceToPartner) {
+						distanceToPartner = weight;
 						bestPartner = other;			
 						
 						//Immediately exit for agents that don't care about the partner's distance
@@ -146,6 +175,8 @@ public class Agent {
 				}
 			}
 		
+			Metrics.CANDIDATES_SCANNED.add(scanned);
+		
 			// Establish a trade connection between the agents
 			if (bestPartner != null) {
 				tradeNetwork.addEdge(this, bestPartner);
@@ -154,18 +185,18 @@ public class Agent {
 	}
 
 	public void completeTrade(Agent agent2, TradeEdge.TradeResult tradeResult, TradeEdge.TradeResult tradeResultWithoutBoosts, double [] appliedBoosts) {
+		this.completeTrade(agent2, this.getPairContext(agent2), tradeResult, tradeResultWithoutBoosts, appliedBoosts);
+	}
+	
+	public void completeTrade(Agent agent2, PairContext pair, TradeEdge.TradeResult tradeResult, TradeEdge.TradeResult tradeResultWithoutBoosts, double [] appliedBoosts) {
 		
 		// Prep the trade data for training
-		double [][] inputArray = this.getInputArray(agent2, appliedBoosts);
+		double [][] inputArray = this.getInputArray(agent2, pair, appliedBoosts);
 		double [][] desiredOutputArray = new double[1][1];
 		
 		//---- actually updating the network --- 
 		// Record that the trade happened
-		RepastEdge<Object> edge = this.commNetwork.getEdge(this, agent2);
-		if (edge != null && CommunicationEdge.class.isInstance(edge)) {
-			((CommunicationEdge<Object>) edge).addTrade();
-			((CommunicationEdge<Object>) edge).setLastTradeResult(this, tradeResult);
-		}
+		pair.recordTrade(this, tradeResult);
 
 		// Update the last trade result
 		this.lastTradeResult = tradeResult;
@@ -198,47 +229,99 @@ public class Agent {
 //		this.supervisor.train(inputArray, desiredOutputArray);
 //		this.supervisor.interrogate(inputArray, desiredOutputArray);
 		this.supervisor.act(inputArray, desiredOutputArray);
+		this.lastPrediction = this.supervisor.getLastPrediction();
 		
 	}
 
-	public void rate(double singleRating) {
-		this.averageRating = ((this.averageRating * this.numOfRatingsReceived ) + singleRating) / (this.numOfRatingsReceived + 1);
-		this.numOfRatingsReceived++;
+	protected TradeJournal getJournal() {
+		return this.supervisor.getJournal();
 	}
-	
-	public double getKinshipCoefficientTo(Agent agent2) {
-		double kinship = Double.POSITIVE_INFINITY;
-		RepastEdge<Object> edge = this.commNetwork.getEdge(this, agent2);
+
+	protected boolean isSupervisorWarmedUp() {
+		return this.supervisor.isWarmedUp();
+	}
+
+	/**
+	 * The communication attributes of this agent and the other, resolved for a trade between them.
+	 */
+	protected PairContext getPairContext(Agent agent2) {
+		return this.communication.getPairContext(this, agent2);
+	}
+
+	/**
+	 * Writes what changes during the run, for a checkpoint. The profile is only written to check that the checkpoint
+	 * is restored into the same model.
+	 */
+	protected void writeState(DataOutput out) throws IOException {
+		out.writeInt(this.profile.getGroupID());
+		out.writeByte(this.profile.getStrategy().ordinal());
+		
+		out.writeBoolean(this.selling != null);
+		if (this.selling != null) {
+			out.writeInt(this.selling.type);
+			out.writeInt(this.selling.cost);
+			out.writeInt(this.selling.benefit);
+		}
+		for (int i = 0; i < Agent.LEN_BUYING; i++) {
+			out.writeInt(this.buyingTypes[i]);
+		}
+		out.writeInt(this.buyingMask);
 		
-		if (edge != null && CommunicationEdge.class.isInstance(edge)) {
-			kinship = ((CommunicationEdge<Object>) edge).getKinship();
+		out.writeByte(this.lastTradeResult.ordinal());
+		out.writeDouble(this.lastPrediction);
+		out.writeInt(this.numOfRatingsReceived);
+		out.writeDouble(this.averageRating);
+	}
+	
+	protected void readState(DataInput in) throws IOException {
+		int groupID = in.readInt();
+		int strategy = in.readByte();
+		if (groupID != this.profile.getGroupID() || strategy != this.profile.getStrategy().ordinal()) {
+			throw new IOException("The profile of agent " + this.id + " doesn't match the checkpoint.");
 		}
 		
-		double kinshipCoeficient = 0;
-		if (kinship < NetworkCuesBuilder.LEN_FAMILY) {
-			kinshipCoeficient = 1 / Math.pow(2, kinship);
+		if (in.readBoolean()) {
+			this.selling = new Good(in.readInt(), in.readInt(), in.readInt());
+		} else {
+			this.selling = null;
 		}
+		for (int i = 0; i < Agent.LEN_BUYING; i++) {
+			this.buyingTypes[i] = in.readInt();
+		}
+		this.buyingMask = in.readInt();
 		
-		return kinshipCoeficient;
+		this.lastTradeResult = TradeResult.values()[in.readByte()];
+		this.lastPrediction = in.readDouble();
+		this.numOfRatingsReceived = in.readInt();
+		this.averageRating = in.readDouble();
+	}
+
+	public int getBuyingMask() {
+		return this.buyingMask;
+	}
+
+	public void rate(double singleRating) {
+		this.averageRating = ((this.averageRating * this.numOfRatingsReceived ) + singleRating) / (this.numOfRatingsReceived + 1);
+		this.numOfRatingsReceived++;
+	}
+	
+	public double getKinshipCoefficientTo(Agent agent2) {
+		return PairContext.getKinshipCoefficient(this.communication.getKinship(this, agent2));
 	}
 
 	public double getNormalizedDistanceTo(Agent agent2) {
-		double normalizedDistance = 0;
-		RepastEdge<Object> edge = this.commNetwork.getEdge(this, agent2);
-		
-		if (edge != null && CommunicationEdge.class.isInstance(edge)) {
-			normalizedDistance = ((CommunicationEdge<Object>) edge).getNormalizedDistance();
-		}
-		
-		return normalizedDistance;
+		return this.communication.getNormalizedDistance(this, agent2);
 	}
 	
 	public double getReputationOf(Agent agent2) {
+		return this.getReputationOf(agent2, this.getPairContext(agent2));
+	}
+	
+	public double getReputationOf(Agent agent2, PairContext pair) {
 		
 		double certainty = this.profile.getCertainty();
-		RepastEdge<Object> edge = this.commNetwork.getEdge(this, agent2);
 	
-		if (edge != null && CommunicationEdge.class.isInstance(edge) && ((CommunicationEdge<Object>) edge).getNumberOfTrades() > 0) {
+		if (pair.getNumberOfTrades() > 0) {
 			certainty = 1;
 		}
 		
@@ -254,15 +337,14 @@ public class Agent {
 	}
 
 	public TradeEdge.TradeResult getLastTradeResultWithAgent(Agent agent2){
-
-		TradeEdge.TradeResult tradeResult = TradeEdge.TradeResult.CC;
-		RepastEdge<Object> edge = this.commNetwork.getEdge(this, agent2);
+		return this.getLastTradeResultWithAgent(agent2, this.getPairContext(agent2));
+	}
 	
-		if (edge != null && CommunicationEdge.class.isInstance(edge) ) {
-			tradeResult = ((CommunicationEdge<Object>) edge).getLastTradeResult(this);
-		}
+	public TradeEdge.TradeResult getLastTradeResultWithAgent(Agent agent2, PairContext pair){
+
+		TradeEdge.TradeResult tradeResult = pair.getLastTradeResult(this);
 		
-		return tradeResult;
+		return tradeResult != null ? tradeResult : TradeEdge.TradeResult.CC;
 		
 	}
 	
@@ -277,18 +359,8 @@ public class Agent {
 		double sum = 0;
 		for (int i = 0, n = point1.dimensionCount(); i < n; i++) {
 			
-			// Get the difference in this dimension
-			double absDiff = Math.abs(point1.getCoord(i) - point2.getCoord(i));
-			
-			// The world is continuous, so make sure the difference is within our dimension length
-			while (absDiff > NetworkCuesBuilder.LEN_SPACE){
-				absDiff -= NetworkCuesBuilder.LEN_SPACE;
-			}
-			
-			// The world is continuous, so check the wrap around distance 
-			if (absDiff > NetworkCuesBuilder.LEN_SPACE / 2){
-				absDiff = NetworkCuesBuilder.LEN_SPACE - absDiff;
-			}
+			// Get the wrap around difference in this dimension
+			double absDiff = SpatialIndex.getTorusDifference(point1.getCoord(i), point2.getCoord(i), NetworkCuesBuilder.LEN_SPACE);
 			
 			sum += absDiff * absDiff;
 		}
@@ -298,19 +370,22 @@ public class Agent {
 	}
 	
 	public double [] getBoosts(Agent agent2)  {
+		return this.getBoosts(agent2, this.getPairContext(agent2));
+	}
+	
+	public double [] getBoosts(Agent agent2, PairContext pair)  {
 		
-		double [][] inputArray = this.getInputArray(agent2, new double [4]);
-		return this.supervisor.getBoosts(inputArray);
+		double [][] inputArray = this.getInputArray(agent2, pair, new double [4]);
+		return this.supervisor.getBoosts(this.id, agent2.id, this.boostsRandom, inputArray);
 	}
 	
 	
-	private double [][] getInputArray(Agent agent2, double [] appliedBoosts) {
+	private double [][] getInputArray(Agent agent2, PairContext pair, double [] appliedBoosts) {
 		
 		// Record that the trade happened
-		TradeEdge.TradeResult previousTradeResult = this.lastTradeResult;
-		RepastEdge<Object> edge = this.commNetwork.getEdge(this, agent2);
-		if (edge != null && CommunicationEdge.class.isInstance(edge)) {
-			previousTradeResult = ((CommunicationEdge<Object>) edge).getLastTradeResult(this);
+		TradeEdge.TradeResult previousTradeResult = pair.getLastTradeResult(this);
+		if (previousTradeResult == null) {
+			previousTradeResult = this.lastTradeResult;
 		}
 		
 		double [][] inputArray = new double[1][20];
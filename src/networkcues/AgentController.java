@@ -1,15 +1,25 @@
 package networkcues;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import org.joone.engine.DirectSynapse;
 import org.joone.engine.FullSynapse;
 import org.joone.engine.Layer;
 import org.joone.engine.LinearLayer;
+import org.joone.engine.Matrix;
 import org.joone.engine.Monitor;
 import org.joone.engine.NeuralNetEvent;
 import org.joone.engine.NeuralNetListener;
@@ -20,6 +30,8 @@ import org.joone.io.MemoryInputSynapse;
 import org.joone.net.NeuralNet;
 import org.joone.net.NeuralNetLoader;
 
+import repast.simphony.engine.schedule.ScheduleParameters;
+import repast.simphony.engine.schedule.ScheduledMethod;
 import repast.simphony.random.RandomHelper;
 
 public class AgentController implements NeuralNetListener {
@@ -27,7 +39,26 @@ public class AgentController implements NeuralNetListener {
 	public static final int LOGGING_START = 20000;
 	public static final Mode LOGGING_MODE = Mode.FULL_BOOSTS;
 	public static enum Mode { FULL_BOOSTS, RANDOM_BOOSTS, NO_BOOSTS, IMPROVE_WITH_BOOSTS };
-	public static int logging_record = 0;
+
+	// Train on the patterns of a whole tick at once instead of starting the network for every single pattern. The network
+	// then stays the same during the tick, which changes the warm-up and the results, so it's off by default
+	public static final boolean BATCHED_TRAINING = false;
+	public static final int TRAINING_BATCH_SIZE = 1024;
+	public static final int TRAINING_EPOCHS = 10;
+
+	// Train on a background thread instead, with the simulation only interrogating the final weights once the trainer has
+	// taken the LOGGING_START patterns of the warm-up
+	public static final boolean ASYNC_TRAINING = false;
+	public static final int TRAINING_QUEUE_CAPACITY = 1 << 14;
+
+	// Boost combinations tried in IMPROVE_WITH_BOOSTS mode, from no boosts to two boosts at a time
+	public static final double [][] BOOST_COMBINATIONS = createBoostCombinations();
+
+	// Number of boost decisions remembered per (agent, partner, signals), 0 turns the cache off
+	public static final int BOOST_CACHE_SIZE = 1 << 16;
+
+	// Largest difference between the inference engine and JOONE before the engine is rejected
+	public static final double INFERENCE_TOLERANCE = 1e-9;
 
 	private String pathToNeuralNetFile;
 	private NeuralNet nnet;
@@ -43,9 +74,37 @@ public class AgentController implements NeuralNetListener {
 	private  double trustValue;
 	private double boostCountValue;
 	private Mode supervisorMode;
+	private double cooperationPercentage;
+	private PrintStream output;
+	private double[][] pendingInputs;
+	private double[][] pendingOutputs;
+	private int pendingPatterns;
+	private NeuralNetInference inference;
+	private boolean inferenceChecked;
+	private double[] boostPredictions;
+	private BoostCache boostCache;
+	private BackgroundTrainer trainer;
+	private RandomStreams randomStreams;
+	private NeuralNetInference snapshot;
+	private double lastPrediction;
+	private TradeJournal journal;
+	private volatile Future<Path> savedNeuralNet;
 
 	public AgentController(String fileName) {
+		this(fileName, new RandomStreams(RandomHelper.getSeed()));
+	}
+
+	public AgentController(String fileName, RandomStreams randomStreams) {
+		this(fileName, randomStreams, null);
+	}
+
+	/**
+	 * Controller that starts from the pretrained weights, if there are any, instead of loading the file.
+	 * The file is still where the network is saved after the warm-up.
+	 */
+	public AgentController(String fileName, RandomStreams randomStreams, NeuralNetWeights pretrained) {
 		groups = new HashMap<Integer, Integer> ();
+		this.randomStreams = randomStreams;
 		groupAffinities = new HashMap<Integer, Double> ();
 
 		this.dontOverDoTheLogging1 = 0;
@@ -56,18 +115,50 @@ public class AgentController implements NeuralNetListener {
 		this.trustValue = 0;
 		this.boostCountValue = 0;
 		this.supervisorMode = LOGGING_MODE;
+		this.cooperationPercentage = Profile.COOPERATION_PERCENTAGE;
+		this.output = System.out;
+		this.pendingInputs = new double [TRAINING_BATCH_SIZE][20];
+		this.pendingOutputs = new double [TRAINING_BATCH_SIZE][1];
+		this.pendingPatterns = 0;
+		this.inference = null;
+		this.inferenceChecked = false;
+		this.boostPredictions = new double [BOOST_COMBINATIONS.length];
+		this.boostCache = new BoostCache(BOOST_CACHE_SIZE);
+		this.lastPrediction = Double.NaN;
+		this.journal = null;
 		this.pathToNeuralNetFile = fileName != null ? fileName : NetworkCuesBuilder.NNET_PATH; 
 
 		// initialize the neural network
-		this.initNeuralNet();
+		this.initNeuralNet(pretrained);
+		
+		// Hand the network over to the trainer thread
+		if (ASYNC_TRAINING) {
+			this.nnet.getMonitor().removeNeuralNetListener(this);
+			this.trainer = new BackgroundTrainer(this, this.pathToNeuralNetFile);
+			this.trainer.start();
+		}
 	}
 
     public void act(double[][] inputArray, double[][] desiredOutputArray) {
     	
-    		logging_record = this.dontOverDoTheLogging2;
+    		this.lastPrediction = Double.NaN;
+    		
+    		// Leave the warm-up to the trainer thread and keep the statistics once it has published the final weights
+    		if (ASYNC_TRAINING) {
+    			if (!this.trainer.isWarmedUp()) {
+    				this.trainer.offer(inputArray[0], desiredOutputArray[0][0]);
+    			} else if (this.refreshSnapshot()) {
+    				this.interrogate(inputArray, desiredOutputArray);
+    			}
+    			return;
+    		}
     	
-	    	if (this.dontOverDoTheLogging1 < LOGGING_START) {
-	    		this.train(inputArray, desiredOutputArray);
+	    	if (this.dontOverDoTheLogging1 + this.pendingPatterns < LOGGING_START) {
+	    		if (BATCHED_TRAINING) {
+	    			this.queueTraining(inputArray, desiredOutputArray);
+	    		} else {
+	    			this.train(inputArray, desiredOutputArray);
+	    		}
 	    	} else if (this.dontOverDoTheLogging2 > LOGGING_START) {
 	    		this.interrogate(inputArray, desiredOutputArray);
 	    	} else if (this.dontOverDoTheLogging2 >= LOGGING_START - 1){
@@ -86,63 +177,25 @@ public class AgentController implements NeuralNetListener {
     	
     }
 
-	private void initNeuralNet() {
+	private void initNeuralNet(NeuralNetWeights pretrained) {
 
-		LinearLayer input; 
-		SigmoidLayer output;
-		
-		// Try to load an existing neural network
-		if (this.pathToNeuralNetFile != null) {
-			NeuralNetLoader loader = new NeuralNetLoader(this.pathToNeuralNetFile); 
-			this.nnet = loader.getNeuralNet();			
+		// Copy the pretrained weights (only read, so other runs can copy them at the same time) or try to load an existing neural network
+		if (pretrained != null) {
+			this.nnet = createNeuralNet();
+			pretrained.applyTo(this.nnet);
+		} else if (this.pathToNeuralNetFile != null) {
+			this.nnet = loadNeuralNet(this.pathToNeuralNetFile);
 		}
 		 
 		if (this.nnet == null) {
-	        // Create the layers
-			input = new LinearLayer();
-			SigmoidLayer hidden1 = new SigmoidLayer();
-			SigmoidLayer hidden2 = new SigmoidLayer();
-			output = new SigmoidLayer();
-	        
-	        input.setRows(20);
-	        hidden1.setRows(24);
-	        hidden2.setRows(8);
-	        output.setRows(1);
-	        
-	        input.setLayerName("L.input");
-	        hidden1.setLayerName("L.hidden1");
-	        hidden2.setLayerName("L.hidden2");
-	        output.setLayerName("L.output");
-	        
-	        // Now create the Synapses
-	        FullSynapse synapse_IH = new FullSynapse();	// input   -> hidden1
-	        FullSynapse synapse_HH = new FullSynapse();	// hidden1 -> hidden2
-	        FullSynapse synapse_HO = new FullSynapse();	// hidden2 -> output
-	        
-	        // Connect the layers using the synapses
-	        input.addOutputSynapse(synapse_IH);
-	        hidden1.addInputSynapse(synapse_IH);
-	        hidden1.addOutputSynapse(synapse_HH);
-	        hidden2.addInputSynapse(synapse_HH);
-	        hidden2.addOutputSynapse(synapse_HO);
-	        output.addInputSynapse(synapse_HO);
-	        
-	        // Create a new Neural network object
-	        nnet = new NeuralNet();
-	        
-	        nnet.addLayer(input, NeuralNet.INPUT_LAYER);
-	        nnet.addLayer(hidden1, NeuralNet.HIDDEN_LAYER);
-	        nnet.addLayer(hidden2, NeuralNet.HIDDEN_LAYER);
-	        nnet.addLayer(output, NeuralNet.OUTPUT_LAYER);
-
+			this.nnet = createNeuralNet();
 		} else {
-			input = (LinearLayer) this.nnet.getInputLayer();
-			output = (SigmoidLayer) this.nnet.getOutputLayer();
-			
-			input.removeAllInputs();
-			output.removeAllOutputs();
+			this.nnet.getInputLayer().removeAllInputs();
+			this.nnet.getOutputLayer().removeAllOutputs();
 			this.nnet.getMonitor().removeAllListeners();
 		}
+		LinearLayer input = (LinearLayer) this.nnet.getInputLayer();
+		SigmoidLayer output = (SigmoidLayer) this.nnet.getOutputLayer();
 
         // Connect the input layer using an input synapse
         this.inputSynapse = new MemoryInputSynapse();
@@ -159,7 +212,60 @@ public class AgentController implements NeuralNetListener {
         
 	}
 
+    /**
+     * Adds the pattern to the batch. The batch is trained when it's full, when it completes the warm-up,
+     * or at the end of the tick.
+     */
+    private void queueTraining(double[][] inputArray, double[][] desiredOutputArray) {
+    	
+    		System.arraycopy(inputArray[0], 0, this.pendingInputs[this.pendingPatterns], 0, 20);
+    		this.pendingOutputs[this.pendingPatterns][0] = desiredOutputArray[0][0];
+    		this.pendingPatterns++;
+    		
+    		if (this.pendingPatterns == TRAINING_BATCH_SIZE || this.dontOverDoTheLogging1 + this.pendingPatterns >= LOGGING_START) {
+    			this.flushTraining();
+    		}
+    }
+
+    /**
+     * Trains the network on the patterns collected during this tick in a single run.
+     */
+    @ScheduledMethod(start = 2, interval = 2, priority = ScheduleParameters.LAST_PRIORITY)
+    public void flushTraining() {
+    	
+    		if (this.pendingPatterns == 0) {
+    			return;
+    		}
+    		
+    		int patterns = this.pendingPatterns;
+    		this.pendingPatterns = 0;
+    		this.train(Arrays.copyOf(this.pendingInputs, patterns), Arrays.copyOf(this.pendingOutputs, patterns), TRAINING_EPOCHS);
+    		
+    		// The network started and stopped once, but the warm-up is counted per pattern
+    		this.dontOverDoTheLogging1 += patterns - 1;
+    		this.dontOverDoTheLogging2 += patterns - 1;
+    }
+
 	public void train(double[][] inputArray, double[][] desiredOutputArray) {
+		this.train(inputArray, desiredOutputArray, 10);
+	}
+
+	private void train(double[][] inputArray, double[][] desiredOutputArray, int epochs) {
+        long start = Metrics.start();
+        
+        // The inference engine holds a copy of the weights that is about to go stale
+        this.inference = null;
+        this.inferenceChecked = false;
+        this.boostCache.clear();
+        
+        this.runTraining(inputArray, desiredOutputArray, epochs);
+        Metrics.TRAIN.stop(start);
+	}
+
+	/**
+	 * Runs the JOONE training itself, on the calling thread.
+	 */
+	protected void runTraining(double[][] inputArray, double[][] desiredOutputArray, int epochs) {
         
         // set the inputs
         inputSynapse.setInputArray(inputArray);
@@ -176,7 +282,7 @@ public class AgentController implements NeuralNetListener {
         monitor.setLearningRate(0.8);
         monitor.setMomentum(0.3);
         monitor.setTrainingPatterns(inputArray.length);
-        monitor.setTotCicles(10);
+        monitor.setTotCicles(epochs);
         monitor.setLearning(true);
         
         // Run the network in single-thread, synchronized mode
@@ -186,11 +292,93 @@ public class AgentController implements NeuralNetListener {
     
     public boolean interrogate (double[][] inputArray, double[][] desiredOutputArray) {
     	
-    		return this.interrogate(inputArray, desiredOutputArray, true);
+    		long start = Metrics.start();
+    		boolean correct = this.interrogate(inputArray, desiredOutputArray, true);
+    		Metrics.INTERROGATE.stop(start);
+    		return correct;
     }
     
     private boolean interrogate (double[][] inputArray, double[][] desiredOutputArray, boolean addToStats) {
     	    		
+    		double prediction = this.predict(inputArray);
+    		boolean NNcorrectlyPredictsOutputs = (prediction < 0.5 && desiredOutputArray[0][0] < 0.5) || (prediction > 0.5 && desiredOutputArray[0][0] > 0.5); 
+
+    		// Statistics
+    		if (addToStats) {
+        		this.lastPrediction = prediction;
+        		
+        		if (NNcorrectlyPredictsOutputs)
+        			this.correctnessValue += 1;
+        		
+        		if (desiredOutputArray[0][0] > 0.5)
+        			this.trustValue += 1;
+
+        		if (this.dontOverDoTheLogging3 % 10 == 0) {
+
+        			this.output.println(this.cooperationPercentage + ";" + String.format("%.2f" , this.trustValue / this.dontOverDoTheLogging3));
+
+        			
+//        			System.out.println((this.dontOverDoTheLogging3 / 100) + ". correctness_ratio: " + String.format("%.2f" , this.correctnessValue / this.dontOverDoTheLogging3)
+//        							   + " cooperation_ratio: " + String.format("%.2f" , this.trustValue / this.dontOverDoTheLogging3)
+//        							   + " boosted: " + String.format("%.2f" , this.boostCountValue / this.boostRequests));
+//        			System.out.println( (this.dontOverDoTheLogging3 / 100) + ". " + String.format("%.2f" , desiredOutputArray[0][0]) + "|" + String.format("%.2f", pattern.getArray()[0]) 
+//        								+ " " + tradeResultWithoutBoosts + " => " + tradeResult 
+//        								+ " [" + (inputArray[0][16] > 0.2 ? "1" : "0") + (inputArray[0][17] > 0.2 ? "1" : "0") 
+//        								+ (inputArray[0][18] > 0.2 ? "1" : "0") + (inputArray[0][19] > 0.2 ? "1" : "0") + "]"
+//        								+ " " + String.format("%.2f" , this.improvementValue / this.dontOverDoTheLogging3));    			
+    			
+        		}
+
+        		this.dontOverDoTheLogging3++;
+    		}
+
+    		return NNcorrectlyPredictsOutputs;
+    }
+    
+    /**
+     * Output of the network for the first pattern of the input array. Once training is over the forward pass runs on a copy
+     * of the weights, after checking once that it gives the same answer as JOONE.
+     */
+    private double predict(double[][] inputArray) {
+    	
+    		// The trainer thread owns the network, so only the snapshot can be used
+    		if (ASYNC_TRAINING) {
+    			if (!this.refreshSnapshot()) {
+    				throw new IllegalStateException("The trainer hasn't published any weights yet.");
+    			}
+    			return this.inference.predict(inputArray[0]);
+    		}
+    		
+    		if (this.inference == null && !this.inferenceChecked && this.dontOverDoTheLogging2 > LOGGING_START && this.pendingPatterns == 0) {
+    			this.inferenceChecked = true;
+    			try {
+    				NeuralNetInference inference = NeuralNetInference.of(this.nnet);
+    				double expected = this.predictWithJoone(inputArray);
+    				double actual = inference.predict(inputArray[0]);
+    				if (Math.abs(expected - actual) <= INFERENCE_TOLERANCE) {
+    					this.inference = inference;
+    				} else {
+    					this.output.println("Inference engine disagrees with the neural network (" + actual + " instead of " + expected + "), using the neural network.");
+    				}
+    				return expected;
+    			} catch (IllegalArgumentException e) {
+    				this.output.println("Inference engine not available: " + e.getMessage());
+    			}
+    		}
+    		
+    		if (this.inference != null) {
+    			
+    			// Keep counting the runs, as if the network started and stopped
+    			this.dontOverDoTheLogging1++;
+    			this.dontOverDoTheLogging2++;
+    			return this.inference.predict(inputArray[0]);
+    		}
+    		
+    		return this.predictWithJoone(inputArray);
+    }
+    
+    private double predictWithJoone(double[][] inputArray) {
+    	
     		// Attach a DirectSynapse to the input layer
     		Layer input = nnet.getInputLayer(); 
     		input.removeAllInputs();
@@ -218,41 +406,221 @@ public class AgentController implements NeuralNetListener {
     		
     		memInp.fwdPut(iPattern);
     		Pattern pattern = memOut.fwdGet();
-    		
-    		boolean NNcorrectlyPredictsOutputs = (pattern.getArray()[0] < 0.5 && desiredOutputArray[0][0] < 0.5) || (pattern.getArray()[0] > 0.5 && desiredOutputArray[0][0] > 0.5); 
     		nnet.stop();
-
-    		// Statistics
-    		if (addToStats) {
-        		if (NNcorrectlyPredictsOutputs)
-        			this.correctnessValue += 1;
-        		
-        		if (desiredOutputArray[0][0] > 0.5)
-        			this.trustValue += 1;
-
-        		if (this.dontOverDoTheLogging3 % 10 == 0) {
-
-        			System.out.println(Profile.COOPERATION_PERCENTAGE + ";" + String.format("%.2f" , this.trustValue / this.dontOverDoTheLogging3));
-
-        			
-//        			System.out.println((this.dontOverDoTheLogging3 / 100) + ". correctness_ratio: " + String.format("%.2f" , this.correctnessValue / this.dontOverDoTheLogging3)
-//        							   + " cooperation_ratio: " + String.format("%.2f" , this.trustValue / this.dontOverDoTheLogging3)
-//        							   + " boosted: " + String.format("%.2f" , this.boostCountValue / this.boostRequests));
-//        			System.out.println( (this.dontOverDoTheLogging3 / 100) + ". " + String.format("%.2f" , desiredOutputArray[0][0]) + "|" + String.format("%.2f", pattern.getArray()[0]) 
-//        								+ " " + tradeResultWithoutBoosts + " => " + tradeResult 
-//        								+ " [" + (inputArray[0][16] > 0.2 ? "1" : "0") + (inputArray[0][17] > 0.2 ? "1" : "0") 
-//        								+ (inputArray[0][18] > 0.2 ? "1" : "0") + (inputArray[0][19] > 0.2 ? "1" : "0") + "]"
-//        								+ " " + String.format("%.2f" , this.improvementValue / this.dontOverDoTheLogging3));    			
+    		
+    		return pattern.getArray()[0];
+    }
+    
+    /**
+     * Boosts for the trade between the agents. Once the weights are fixed, the boosts in IMPROVE_WITH_BOOSTS mode only depend
+     * on the agents and the two signals, so they are remembered per (agent, partner, signals).
+     * The random stream is the BOOSTS stream of the agent, which the agent looks up once.
+     */
+    public double [] getBoosts(int agentId, int partnerId, RandomStream random, double[][] inputArray) {
+    	
+    		long start = Metrics.start();
+    		double [] boosts = this.lookUpBoosts(agentId, partnerId, random, inputArray);
+    		Metrics.GET_BOOSTS.stop(start);
+    		return boosts;
+    }
+    
+    private double [] lookUpBoosts(int agentId, int partnerId, RandomStream random, double[][] inputArray) {
+    	
+    		if (ASYNC_TRAINING) {
+    			this.refreshSnapshot();
+    		}
+    		
+    		if (this.supervisorMode != Mode.IMPROVE_WITH_BOOSTS || BOOST_CACHE_SIZE == 0 || this.inference == null || this.dontOverDoTheLogging3 <= 10) {
+    			return this.getBoosts(random, inputArray);
+    		}
+    		
+    		long key = BoostCache.keyOf(agentId, partnerId, inputArray[0][14] > 0.5, inputArray[0][15] > 0.5);
+    		double [] boosts = this.boostCache.get(key);
+    		if (boosts != null) {
+    			this.boostCache.hits++;
     			
-        		}
-
-        		this.dontOverDoTheLogging3++;
+    			// Count the request as if the network was asked again
+    			this.boostRequests++;
+    			if (boosts[0] > 0 || boosts[1] > 0 || boosts[2] > 0 || boosts[3] > 0)
+    				this.boostCountValue++;
+    			return boosts.clone();
+    		}
+    		
+    		this.boostCache.misses++;
+    		boosts = this.getBoosts(random, inputArray);
+    		this.boostCache.put(key, boosts.clone());
+    		return boosts;
+    }
+    
+    /**
+     * Picks up the final weights published by the trainer. Returns whether there are any.
+     */
+    private boolean refreshSnapshot() {
+    	
+    		NeuralNetInference snapshot = this.trainer.getSnapshot();
+    		if (snapshot != this.snapshot) {
+    			this.snapshot = snapshot;
+    			this.inference = snapshot.copy();
+    			this.inferenceChecked = true;
+    			this.boostCache.clear();
     		}
+    		
+    		return this.inference != null;
+    }
+    
+    /**
+     * Stops the trainer thread at the end of the run.
+     */
+    @ScheduledMethod(start = ScheduleParameters.END)
+    public void stopTraining() {
+    		if (this.trainer != null) {
+    			this.trainer.stop();
+    		}
+    		
+    		// Wait for the network to be written
+    		Future<Path> savedNeuralNet = this.savedNeuralNet;
+    		if (savedNeuralNet != null) {
+    			try {
+    				savedNeuralNet.get();
+    			} catch (ExecutionException e) {
+    				// Already reported by the writer
+    			} catch (InterruptedException e) {
+    				Thread.currentThread().interrupt();
+    			}
+    		}
+    }
+    
+    public BackgroundTrainer getTrainer() {
+    		return this.trainer;
+    }
+    
+    /**
+     * Prediction of the last pattern the controller acted on, or NaN if it only trained on it.
+     */
+    public double getLastPrediction() {
+    		return this.lastPrediction;
+    }
+    
+    public TradeJournal getJournal() {
+    		return this.journal;
+    }
+    
+    public void setJournal(TradeJournal journal) {
+    		this.journal = journal;
+    }
+    
+    public int getInterrogations() {
+    		return this.dontOverDoTheLogging3;
+    }
+    
+    /**
+     * Whether the network has stopped more than LOGGING_START times, i.e. the warm-up is over.
+     */
+    public boolean isWarmedUp() {
+    		if (ASYNC_TRAINING) {
+    			return this.trainer.isWarmedUp();
+    		}
+    		return this.dontOverDoTheLogging2 > LOGGING_START;
+    }
+    
+    /**
+     * Share of the interrogated trades in which the agent cooperated.
+     */
+    public double getCooperationRatio() {
+    		return this.dontOverDoTheLogging3 == 0 ? Double.NaN : this.trustValue / this.dontOverDoTheLogging3;
+    }
+    
+    /**
+     * Share of the interrogated trades that the network predicted correctly.
+     */
+    public double getCorrectnessRatio() {
+    		return this.dontOverDoTheLogging3 == 0 ? Double.NaN : this.correctnessValue / this.dontOverDoTheLogging3;
+    }
+    
+    /**
+     * Share of the boost requests that were answered with a boost.
+     */
+    public double getBoostRatio() {
+    		return this.boostRequests == 0 ? Double.NaN : this.boostCountValue / this.boostRequests;
+    }
+    
+    public Mode getMode() {
+    		return this.supervisorMode;
+    }
+    
+    /**
+     * Switches the supervisor to another mode than LOGGING_MODE, e.g. to compare the modes in a benchmark.
+     */
+    protected void setMode(Mode mode) {
+    		this.supervisorMode = mode;
+    		this.boostCache.clear();
+    }
+    
+    /**
+     * Ends the warm-up with the current weights, as if the network had been trained on LOGGING_START patterns, e.g. to
+     * benchmark the controller after the warm-up. The network isn't saved.
+     */
+    protected void endWarmUp() {
+    		if (ASYNC_TRAINING) {
+    			throw new IllegalStateException("The warm-up belongs to the trainer thread and can't be skipped.");
+    		}
+    		this.pendingPatterns = 0;
+    		this.dontOverDoTheLogging1 = LOGGING_START + 1;
+    		this.dontOverDoTheLogging2 = LOGGING_START + 1;
+    		this.inference = null;
+    		this.inferenceChecked = false;
+    		this.boostCache.clear();
+    }
 
-    		return NNcorrectlyPredictsOutputs;
+    /**
+     * Whether the forward passes run on a copy of the weights instead of JOONE.
+     */
+    protected boolean isUsingInference() {
+    		return this.inference != null;
+    }
+
+    /**
+     * Cooperation percentage of the run, printed with the statistics, instead of Profile.COOPERATION_PERCENTAGE.
+     */
+    protected void setCooperationPercentage(double cooperationPercentage) {
+    		this.cooperationPercentage = cooperationPercentage;
+    }
+    
+    /**
+     * Where the statistics are printed, instead of System.out.
+     */
+    protected void setOutput(PrintStream output) {
+    		this.output = output;
+    }
+    
+    protected PrintStream getOutput() {
+    		return this.output;
+    }
+    
+    protected NeuralNet getNeuralNet() {
+    		return this.nnet;
+    }
+    
+    public long getBoostCacheHits() {
+    		return this.boostCache.hits;
+    }
+    
+    public long getBoostCacheMisses() {
+    		return this.boostCache.misses;
+    }
+    
+    public long getBoostCacheEvictions() {
+    		return this.boostCache.evictions;
     }
     
     public double [] getBoosts(double[][] inputArray) {
+    		long start = Metrics.start();
+    		double [] boosts = this.getBoosts(this.randomStreams.get(RandomStreams.Phase.BOOSTS, -1), inputArray);
+    		Metrics.GET_BOOSTS.stop(start);
+    		return boosts;
+    }
+    
+    private double [] getBoosts(RandomStream random, double[][] inputArray) {
 
     		double[] boosts = new double [4];
     		switch(this.supervisorMode) {
@@ -263,10 +631,10 @@ public class AgentController implements NeuralNetListener {
 	    		boosts[3] = 0.9;
 	    		break;
     		case RANDOM_BOOSTS:
-	    		boosts[0] = RandomHelper.nextDouble() > 0.2 ? 0 : RandomHelper.nextDoubleFromTo(0.75, 1);
-	    		boosts[1] = RandomHelper.nextDouble() > 0.2 ? 0 : RandomHelper.nextDoubleFromTo(0.75, 1);
-	    		boosts[2] = RandomHelper.nextDouble() > 0.2 ? 0 : RandomHelper.nextDoubleFromTo(0.75, 1);
-	    		boosts[3] = RandomHelper.nextDouble() > 0.2 ? 0 : RandomHelper.nextDoubleFromTo(0.75, 1);
+	    		boosts[0] = random.nextDouble() > 0.2 ? 0 : random.nextDoubleFromTo(0.75, 1);
+	    		boosts[1] = random.nextDouble() > 0.2 ? 0 : random.nextDoubleFromTo(0.75, 1);
+	    		boosts[2] = random.nextDouble() > 0.2 ? 0 : random.nextDoubleFromTo(0.75, 1);
+	    		boosts[3] = random.nextDouble() > 0.2 ? 0 : random.nextDoubleFromTo(0.75, 1);
 	    		break;
 
 		case IMPROVE_WITH_BOOSTS:
@@ -285,29 +653,42 @@ public class AgentController implements NeuralNetListener {
     					desiredInputArray[0][i] = inputArray[0][i];
     				}
 
-    				// Keep trying boosts until we find something we find something that makes the user cooperate
-    				for(int i = 0; i < 12; i++) {
-    					boosts[0] = (i == 1 || i == 5 || i == 8 || i == 9 )  ? 0.9 : 0;
-    					boosts[1] = (i == 2 || i == 5 || i == 6 || i == 10 ) ? 0.9 : 0;
-    					boosts[2] = (i == 3 || i == 7 || i == 6 || i == 9 )  ? 0.9 : 0;
-    					boosts[3] = (i == 4 || i == 7 || i == 8 || i == 10 ) ? 0.9 : 0;
+    				// Score all the combinations in one pass and take the first one that makes the user cooperate
+    				if (this.inference != null) {
+    					this.dontOverDoTheLogging1++;
+    					this.dontOverDoTheLogging2++;
+    					this.inference.predictAll(desiredInputArray[0], 16, BOOST_COMBINATIONS, this.boostPredictions);
     					
-    					desiredInputArray[0][16] = boosts[0];
-    					desiredInputArray[0][17] = boosts[1];
-    					desiredInputArray[0][18] = boosts[2];
-    					desiredInputArray[0][19] = boosts[3];
-    					
-    					if(interrogate (desiredInputArray, desiredOutputArray, false)) {
-    						if(i > 0)
-    							this.boostCountValue++;
-    						break;
+    					int i = 0;
+    					while (i < BOOST_COMBINATIONS.length - 1 && !(this.boostPredictions[i] > 0.5)) {
+    						i++;
     					}
+    					if (i > 0 && this.boostPredictions[i] > 0.5)
+    						this.boostCountValue++;
+    					Metrics.BOOST_ITERATIONS.record(i + 1);
+    					System.arraycopy(BOOST_COMBINATIONS[i], 0, boosts, 0, 4);
+    				} else {
+    				
+	    				// Keep trying boosts until we find something we find something that makes the user cooperate
+	    				int iterations = 0;
+	    				for(int i = 0; i < BOOST_COMBINATIONS.length; i++) {
+	    					System.arraycopy(BOOST_COMBINATIONS[i], 0, boosts, 0, 4);
+	    					System.arraycopy(boosts, 0, desiredInputArray[0], 16, 4);
+	    					iterations++;
+	    					
+	    					if(interrogate (desiredInputArray, desiredOutputArray, false)) {
+	    						if(i > 0)
+	    							this.boostCountValue++;
+	    						break;
+	    					}
+	    				}
+	    				Metrics.BOOST_ITERATIONS.record(iterations);
     				}
     			} else {
-		    		boosts[0] = RandomHelper.nextDouble() > 0.2 ? 0 : RandomHelper.nextDoubleFromTo(0.75, 1);
-		    		boosts[1] = RandomHelper.nextDouble() > 0.2 ? 0 : RandomHelper.nextDoubleFromTo(0.75, 1);
-		    		boosts[2] = RandomHelper.nextDouble() > 0.2 ? 0 : RandomHelper.nextDoubleFromTo(0.75, 1);
-		    		boosts[3] = RandomHelper.nextDouble() > 0.2 ? 0 : RandomHelper.nextDoubleFromTo(0.75, 1);
+		    		boosts[0] = random.nextDouble() > 0.2 ? 0 : random.nextDoubleFromTo(0.75, 1);
+		    		boosts[1] = random.nextDouble() > 0.2 ? 0 : random.nextDoubleFromTo(0.75, 1);
+		    		boosts[2] = random.nextDouble() > 0.2 ? 0 : random.nextDoubleFromTo(0.75, 1);
+		    		boosts[3] = random.nextDouble() > 0.2 ? 0 : random.nextDoubleFromTo(0.75, 1);
     			}
     			break;
     		case NO_BOOSTS:
@@ -318,13 +699,24 @@ public class AgentController implements NeuralNetListener {
     		return boosts;
     }
 
+	private static double [][] createBoostCombinations() {
+		double [][] combinations = new double [12][4];
+		for (int i = 0; i < combinations.length; i++) {
+			combinations[i][0] = (i == 1 || i == 5 || i == 8 || i == 9 )  ? 0.9 : 0;
+			combinations[i][1] = (i == 2 || i == 5 || i == 6 || i == 10 ) ? 0.9 : 0;
+			combinations[i][2] = (i == 3 || i == 7 || i == 6 || i == 9 )  ? 0.9 : 0;
+			combinations[i][3] = (i == 4 || i == 7 || i == 8 || i == 10 ) ? 0.9 : 0;
+		}
+		return combinations;
+	}
+
 	public void addAgentToGroup(int groupID) {
 		
 		if (this.groups.containsKey(groupID)) {
 			this.groups.put(groupID, this.groups.get(groupID) + 1);
 		} else {
 			this.groups.put(groupID, 1);
-			this.groupAffinities.put(groupID, RandomHelper.nextDoubleFromTo(0.3, 0.6));
+			this.groupAffinities.put(groupID, this.randomStreams.get(RandomStreams.Phase.GROUP, groupID).nextDoubleFromTo(0.3, 0.6));
 		}
 		
 	}
@@ -340,18 +732,250 @@ public class AgentController implements NeuralNetListener {
 		}
 	}
 
-	public void saveNeuralNet(String fileName) {
+	/**
+	 * Writes the counters, the training batch, the boost cache, the groups and the weights of the network (with the
+	 * deltas that carry the momentum), for a checkpoint. Only call this between trades, on the simulation thread.
+	 */
+	public void writeState(DataOutput out) throws IOException {
+		if (ASYNC_TRAINING) {
+			throw new IllegalStateException("The network belongs to the trainer thread and can't be checkpointed.");
+		}
+		
+		// Counters and statistics
+		out.writeInt(this.dontOverDoTheLogging1);
+		out.writeInt(this.dontOverDoTheLogging2);
+		out.writeInt(this.dontOverDoTheLogging3);
+		out.writeInt(this.boostRequests);
+		out.writeDouble(this.correctnessValue);
+		out.writeDouble(this.trustValue);
+		out.writeDouble(this.boostCountValue);
+		out.writeByte(this.supervisorMode.ordinal());
+		out.writeDouble(this.lastPrediction);
+		
+		// Patterns waiting to be trained
+		out.writeInt(this.pendingPatterns);
+		for (int p = 0; p < this.pendingPatterns; p++) {
+			for (int i = 0; i < 20; i++) {
+				out.writeDouble(this.pendingInputs[p][i]);
+			}
+			out.writeDouble(this.pendingOutputs[p][0]);
+		}
+		
+		// Whether the inference engine was checked and is in use
+		out.writeByte(!this.inferenceChecked ? 0 : this.inference == null ? 1 : 2);
+		
+		// Groups
+		out.writeInt(this.groups.size());
+		for (Map.Entry<Integer, Integer> group : new TreeMap<Integer, Integer>(this.groups).entrySet()) {
+			out.writeInt(group.getKey());
+			out.writeInt(group.getValue());
+			out.writeDouble(this.groupAffinities.get(group.getKey()));
+		}
+		
+		// Boost cache, from the least to the most recently used
+		this.boostCache.writeState(out);
+		
+		// Weights and biases
+		for (String name : NeuralNetWeights.LAYER_NAMES) {
+			Layer layer = this.getLayer(name);
+			writeMatrix(out, layer.getBias());
+			for (Object o : layer.getAllInputs()) {
+				if (o instanceof FullSynapse) {
+					writeMatrix(out, ((FullSynapse) o).getWeights());
+				}
+			}
+		}
+	}
+	
+	public void readState(DataInput in) throws IOException {
+		if (ASYNC_TRAINING) {
+			throw new IllegalStateException("The network belongs to the trainer thread and can't be restored.");
+		}
+		
+		// Counters and statistics
+		this.dontOverDoTheLogging1 = in.readInt();
+		this.dontOverDoTheLogging2 = in.readInt();
+		this.dontOverDoTheLogging3 = in.readInt();
+		this.boostRequests = in.readInt();
+		this.correctnessValue = in.readDouble();
+		this.trustValue = in.readDouble();
+		this.boostCountValue = in.readDouble();
+		this.supervisorMode = Mode.values()[in.readByte()];
+		this.lastPrediction = in.readDouble();
+		
+		// Patterns waiting to be trained
+		this.pendingPatterns = in.readInt();
+		for (int p = 0; p < this.pendingPatterns; p++) {
+			for (int i = 0; i < 20; i++) {
+				this.pendingInputs[p][i] = in.readDouble();
+			}
+			this.pendingOutputs[p][0] = in.readDouble();
+		}
+		int inferenceState = in.readByte();
+		
+		// Groups
+		this.groups.clear();
+		this.groupAffinities.clear();
+		int numberOfGroups = in.readInt();
+		for (int g = 0; g < numberOfGroups; g++) {
+			int groupID = in.readInt();
+			this.groups.put(groupID, in.readInt());
+			this.groupAffinities.put(groupID, in.readDouble());
+		}
+		
+		// Boost cache, in the same order
+		this.boostCache.readState(in);
+		
+		// Weights and biases
+		for (String name : NeuralNetWeights.LAYER_NAMES) {
+			Layer layer = this.getLayer(name);
+			readMatrix(in, layer.getBias(), name + " bias");
+			for (Object o : layer.getAllInputs()) {
+				if (o instanceof FullSynapse) {
+					readMatrix(in, ((FullSynapse) o).getWeights(), name + " weights");
+				}
+			}
+		}
+		
+		// Rebuild the inference engine from the restored weights, without checking it against JOONE again
+		this.inferenceChecked = inferenceState > 0;
+		this.inference = inferenceState == 2 ? NeuralNetInference.of(this.nnet) : null;
+	}
+	
+	private Layer getLayer(String name) {
+		Layer layer = this.nnet.getLayer(name);
+		if (layer == null) {
+			throw new IllegalStateException("The neural network has no layer " + name + ".");
+		}
+		return layer;
+	}
+	
+	private static void writeMatrix(DataOutput out, Matrix matrix) throws IOException {
+		if (matrix == null || matrix.value == null) {
+			out.writeInt(-1);
+			return;
+		}
+		
+		int rows = matrix.value.length;
+		int columns = rows > 0 ? matrix.value[0].length : 0;
+		out.writeInt(rows);
+		out.writeInt(columns);
+		for (int r = 0; r < rows; r++) {
+			for (int c = 0; c < columns; c++) {
+				out.writeDouble(matrix.value[r][c]);
+				out.writeDouble(matrix.delta != null ? matrix.delta[r][c] : 0);
+			}
+		}
+	}
+	
+	private static void readMatrix(DataInput in, Matrix matrix, String name) throws IOException {
+		int rows = in.readInt();
+		if (rows < 0 && (matrix == null || matrix.value == null)) {
+			return;
+		}
+		
+		int columns = rows >= 0 ? in.readInt() : 0;
+		if (matrix == null || matrix.value == null || matrix.value.length != rows || (rows > 0 && matrix.value[0].length != columns)) {
+			throw new IOException("The " + name + " of the checkpoint don't fit the neural network.");
+		}
+		if (matrix.delta == null) {
+			matrix.delta = new double [rows][columns];
+		}
+		for (int r = 0; r < rows; r++) {
+			for (int c = 0; c < columns; c++) {
+				matrix.value[r][c] = in.readDouble();
+				matrix.delta[r][c] = in.readDouble();
+			}
+		}
+	}
+
+	/**
+	 * The 20-24-8-1 network with new weights.
+	 */
+	static NeuralNet createNeuralNet() {
+	        // Create the layers
+	        LinearLayer input = new LinearLayer();
+	        SigmoidLayer hidden1 = new SigmoidLayer();
+	        SigmoidLayer hidden2 = new SigmoidLayer();
+	        SigmoidLayer output = new SigmoidLayer();
+	        
+	        input.setRows(20);
+	        hidden1.setRows(24);
+	        hidden2.setRows(8);
+	        output.setRows(1);
+	        
+	        input.setLayerName("L.input");
+	        hidden1.setLayerName("L.hidden1");
+	        hidden2.setLayerName("L.hidden2");
+	        output.setLayerName("L.output");
+	        
+	        // Now create the Synapses
+	        FullSynapse synapse_IH = new FullSynapse();	// input   -> hidden1
+	        FullSynapse synapse_HH = new FullSynapse();	// hidden1 -> hidden2
+	        FullSynapse synapse_HO = new FullSynapse();	// hidden2 -> output
+	        
+	        // Connect the layers using the synapses
+	        input.addOutputSynapse(synapse_IH);
+	        hidden1.addInputSynapse(synapse_IH);
+	        hidden1.addOutputSynapse(synapse_HH);
+	        hidden2.addInputSynapse(synapse_HH);
+	        hidden2.addOutputSynapse(synapse_HO);
+	        output.addInputSynapse(synapse_HO);
+	        
+	        // Create a new Neural network object
+	        NeuralNet nnet = new NeuralNet();
+	        
+	        nnet.addLayer(input, NeuralNet.INPUT_LAYER);
+	        nnet.addLayer(hidden1, NeuralNet.HIDDEN_LAYER);
+	        nnet.addLayer(hidden2, NeuralNet.HIDDEN_LAYER);
+	        nnet.addLayer(output, NeuralNet.OUTPUT_LAYER);
+
+	        return nnet;
+	}
+
+	/**
+	 * Loads the network from a .ncw weight file, or deserializes it from any other file. A missing .ncw file is imported
+	 * from the serialized network next to it, e.g. output/neuralnet.snet for output/neuralnet.ncw, and saved as .ncw at
+	 * the end of the warm-up. Returns null if there is none.
+	 */
+	static NeuralNet loadNeuralNet(String fileName) {
+		if (!NeuralNetWeights.isWeightFile(fileName)) {
+			return deserializeNeuralNet(fileName);
+		}
+		if (!new File(fileName).isFile()) {
+			String serialized = fileName.substring(0, fileName.length() - NeuralNetWeights.EXTENSION.length()) + NeuralNetWeights.SERIALIZED_EXTENSION;
+			if (new File(serialized).isFile()) {
+				return deserializeNeuralNet(serialized);
+			}
+			System.out.println("No neural network at " + fileName + ", starting from a new network.");
+			return null;
+		}
+		
 		try {
-			NeuralNet cloneNet = nnet.cloneNet();
-			FileOutputStream stream = new FileOutputStream(fileName); 
-			ObjectOutputStream out = new ObjectOutputStream(stream); 
-			out.writeObject(cloneNet);
-			out.close();
-		} catch (Exception excp) {
-			excp.printStackTrace(); 
+			NeuralNet nnet = createNeuralNet();
+			NeuralNetWeights.read(fileName).applyTo(nnet);
+			System.out.println("Neural network loaded from " + fileName);
+			return nnet;
+		} catch (IOException | IllegalArgumentException e) {
+			System.out.println("Neural network not loaded from " + fileName + ": " + e.getMessage());
+			return null;
 		}
 	}
 	
+	private static NeuralNet deserializeNeuralNet(String fileName) {
+		NeuralNetLoader loader = new NeuralNetLoader(fileName); 
+		NeuralNet nnet = loader.getNeuralNet();
+		System.out.println(nnet != null ? "Neural network loaded from " + fileName : "Neural network not loaded from " + fileName);
+		return nnet;
+	}
+
+	/**
+	 * Saves the network in the background, see {@link NeuralNetWeights#save(NeuralNet, String)}.
+	 */
+	public void saveNeuralNet(String fileName) {
+		this.savedNeuralNet = NeuralNetWeights.save(this.nnet, fileName);
+	}
+	
 	public NeuralNet restoreNeuralNet(String fileName) {
 		
 		NeuralNet newNet = null;
@@ -376,7 +1000,7 @@ public class AgentController implements NeuralNetListener {
 	public void errorChanged(NeuralNetEvent arg0) {
         Monitor mon = (Monitor) arg0.getSource();
         if (mon.getCurrentCicle() % 100 == 0)
-            System.out.println("Epoch: "+(mon.getTotCicles() - mon.getCurrentCicle())+" RMSE:" + mon.getGlobalError());
+            this.output.println("Epoch: "+(mon.getTotCicles() - mon.getCurrentCicle())+" RMSE:" + mon.getGlobalError());
     }
 
 	@Override
@@ -396,14 +1020,199 @@ public class AgentController implements NeuralNetListener {
 	public void netStopped(NeuralNetEvent arg0) {
         Monitor mon = (Monitor) arg0.getSource();
         if (mon.isLearning() && this.dontOverDoTheLogging2 % 20 == 0) {
-        		System.out.println(this.dontOverDoTheLogging2 + ". Network stopped. Last RMSE=" + mon.getGlobalError() + " " + nnet.isRunning());
+        		this.output.println(this.dontOverDoTheLogging2 + ". Network stopped. Last RMSE=" + mon.getGlobalError() + " " + nnet.isRunning());
         }
         this.dontOverDoTheLogging2++;
 	}
 
 	@Override
 	public void netStoppedError(NeuralNetEvent arg0, String errorMessage) {
-		System.out.println("Network stopped due the following error: " + errorMessage);
+		this.output.println("Network stopped due the following error: " + errorMessage);
 		
 	}
+
+	/**
+	 * Least recently used boost decisions, keyed by agent id, partner id and the two signal bits. The keys are kept in an
+	 * open addressing table of longs, so looking up a decision doesn't box its key, and the entries in a list from the
+	 * least to the most recently used.
+	 */
+	private static class BoostCache {
+
+		private static final int NONE = -1;
+
+		private final int capacity;
+		private final long [] keys;
+		private final double [][] values;
+		private final int [] older;
+		private final int [] newer;
+		private final int [] table;
+		private final int mask;
+		private int size;
+		private int eldest;
+		private int youngest;
+		private long hits;
+		private long misses;
+		private long evictions;
+
+		private BoostCache(int capacity) {
+			int entries = Math.max(capacity, 1);
+			this.capacity = capacity;
+			this.keys = new long [entries];
+			this.values = new double [entries][];
+			this.older = new int [entries];
+			this.newer = new int [entries];
+
+			// At most half of the slots are used
+			this.table = new int [Integer.highestOneBit(2 * entries - 1) << 1];
+			this.mask = this.table.length - 1;
+			Arrays.fill(this.table, NONE);
+			this.size = 0;
+			this.eldest = NONE;
+			this.youngest = NONE;
+		}
+
+		private static long keyOf(int agentId, int partnerId, boolean sameGroup, boolean previousCooperation) {
+			return ((long) agentId << 33) | ((long) partnerId << 2) | (sameGroup ? 2 : 0) | (previousCooperation ? 1 : 0);
+		}
+
+		/**
+		 * The decision for the key, which becomes the most recently used, or null if there is none.
+		 */
+		private double [] get(long key) {
+			int entry = this.table[this.slotOf(key)];
+			if (entry == NONE) {
+				return null;
+			}
+			this.unlink(entry);
+			this.linkYoungest(entry);
+			return this.values[entry];
+		}
+
+		/**
+		 * Remembers the decision as the most recently used, evicting the least recently used one if the cache is full.
+		 */
+		private void put(long key, double [] boosts) {
+			if (this.capacity == 0) {
+				return;
+			}
+			int slot = this.slotOf(key);
+			int entry = this.table[slot];
+			if (entry != NONE) {
+				this.unlink(entry);
+			} else {
+				if (this.size < this.capacity) {
+					entry = this.size++;
+				} else {
+					entry = this.eldest;
+					this.remove(entry);
+					this.evictions++;
+					slot = this.slotOf(key);
+				}
+				this.keys[entry] = key;
+				this.table[slot] = entry;
+			}
+			this.values[entry] = boosts;
+			this.linkYoungest(entry);
+		}
+
+		private int size() {
+			return this.size;
+		}
+
+		private void clear() {
+			if (this.size == 0) {
+				return;
+			}
+			Arrays.fill(this.table, NONE);
+			Arrays.fill(this.values, null);
+			this.size = 0;
+			this.eldest = NONE;
+			this.youngest = NONE;
+		}
+
+		private int slotOf(long key) {
+			int slot = hash(key) & this.mask;
+			while (this.table[slot] != NONE && this.keys[this.table[slot]] != key) {
+				slot = (slot + 1) & this.mask;
+			}
+			return slot;
+		}
+
+		private static int hash(long key) {
+			return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32);
+		}
+
+		/**
+		 * Takes the entry out of the table, moving back the entries after it that would no longer be found.
+		 */
+		private void remove(int entry) {
+			this.unlink(entry);
+			int slot = this.slotOf(this.keys[entry]);
+			this.table[slot] = NONE;
+			for (int next = (slot + 1) & this.mask; this.table[next] != NONE; next = (next + 1) & this.mask) {
+				int home = hash(this.keys[this.table[next]]) & this.mask;
+				if (((next - home) & this.mask) >= ((next - slot) & this.mask)) {
+					this.table[slot] = this.table[next];
+					this.table[next] = NONE;
+					slot = next;
+				}
+			}
+		}
+
+		private void unlink(int entry) {
+			if (this.older[entry] != NONE) {
+				this.newer[this.older[entry]] = this.newer[entry];
+			} else {
+				this.eldest = this.newer[entry];
+			}
+			if (this.newer[entry] != NONE) {
+				this.older[this.newer[entry]] = this.older[entry];
+			} else {
+				this.youngest = this.older[entry];
+			}
+		}
+
+		private void linkYoungest(int entry) {
+			this.older[entry] = this.youngest;
+			this.newer[entry] = NONE;
+			if (this.youngest != NONE) {
+				this.newer[this.youngest] = entry;
+			} else {
+				this.eldest = entry;
+			}
+			this.youngest = entry;
+		}
+
+		/**
+		 * Writes the counters and the decisions, from the least to the most recently used.
+		 */
+		private void writeState(DataOutput out) throws IOException {
+			out.writeLong(this.hits);
+			out.writeLong(this.misses);
+			out.writeLong(this.evictions);
+			out.writeInt(this.size);
+			for (int entry = this.eldest; entry != NONE; entry = this.newer[entry]) {
+				out.writeLong(this.keys[entry]);
+				for (int i = 0; i < 4; i++) {
+					out.writeDouble(this.values[entry][i]);
+				}
+			}
+		}
+
+		private void readState(DataInput in) throws IOException {
+			this.clear();
+			this.hits = in.readLong();
+			this.misses = in.readLong();
+			this.evictions = in.readLong();
+			int size = in.readInt();
+			for (int b = 0; b < size; b++) {
+				long key = in.readLong();
+				double [] boosts = new double [4];
+				for (int i = 0; i < 4; i++) {
+					boosts[i] = in.readDouble();
+				}
+				this.put(key, boosts);
+			}
+		}
+	}
 }
@@ -0,0 +1,81 @@
+package networkcues;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Parameters of the command line programs: options with a value, like "--ticks 1000", and switches without one, like
+ * "--sparse". Read the options with {@link #get(String, Function, Object)}, then call {@link #checkUnknown()}.
+ * Invalid parameters print the usage and exit.
+ */
+public class Arguments {
+
+	private final String usage;
+	private final Map<String, String> values;
+	private final Set<String> switches;
+
+	/**
+	 * Splits the arguments into options and the given switches.
+	 */
+	public Arguments(String usage, String [] args, String... switches) {
+		this.usage = usage;
+		this.values = new LinkedHashMap<String, String>();
+		this.switches = new HashSet<String>();
+
+		List<String> knownSwitches = Arrays.asList(switches);
+		for (int i = 0; i < args.length; i++) {
+			if (knownSwitches.contains(args[i])) {
+				this.switches.add(args[i]);
+			} else if (!args[i].startsWith("--")) {
+				throw this.fail("unknown parameter " + args[i]);
+			} else if (i + 1 >= args.length) {
+				throw this.fail("missing value for " + args[i]);
+			} else {
+				this.values.put(args[i], args[++i]);
+			}
+		}
+	}
+
+	/**
+	 * Whether the switch was given.
+	 */
+	public boolean has(String name) {
+		return this.switches.contains(name);
+	}
+
+	/**
+	 * The parsed value of the option, or the default value if it wasn't given.
+	 */
+	public <T> T get(String name, Function<String, T> parse, T defaultValue) {
+		String value = this.values.remove(name);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return parse.apply(value);
+		} catch (RuntimeException e) {
+			throw this.fail("invalid value " + value + " for " + name + " (" + e.getMessage() + ")");
+		}
+	}
+
+	/**
+	 * Fails if an option was given that wasn't read.
+	 */
+	public void checkUnknown() {
+		if (!this.values.isEmpty()) {
+			throw this.fail("unknown parameter " + this.values.keySet().iterator().next());
+		}
+	}
+
+	private IllegalArgumentException fail(String message) {
+		System.err.println("Invalid parameters: " + message);
+		System.err.println("Usage: " + this.usage);
+		System.exit(1);
+		return new IllegalArgumentException(message);
+	}
+}
@@ -0,0 +1,161 @@
+package networkcues;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Trains the supervisor network on its own thread. The simulation publishes patterns to a {@link TrainingQueue} and never
+ * waits for the trainer, which takes batches off the queue. The JOONE network belongs to the trainer thread while it runs.
+ *
+ * Like the synchronous warm-up, the trainer takes exactly LOGGING_START patterns. After the last of them it publishes
+ * the final weights as a {@link NeuralNetInference} snapshot, saves the network and stops, and the simulation only
+ * interrogates that snapshot. The snapshot is never changed afterwards, so the simulation can read it without locking.
+ *
+ * If training fails, or the final weights can't be published, the trainer stops and keeps the failure, which is
+ * thrown on the simulation thread the next time it offers a pattern or stops the trainer.
+ */
+public class BackgroundTrainer implements Runnable {
+
+	// How long the trainer sleeps when the queue is empty
+	private static final long IDLE_NANOS = 1000000;
+
+	private final AgentController controller;
+	private final TrainingQueue queue;
+	private final AtomicReference<NeuralNetInference> snapshot;
+	private final String pathToNeuralNetFile;
+	private final double [][] batchInputs;
+	private final double [][] batchOutputs;
+
+	private volatile boolean running;
+	private volatile boolean warmedUp;
+	private volatile RuntimeException failure;
+	private int queuedPatterns;
+	private volatile long trainedPatterns;
+	private volatile long batches;
+	private Thread thread;
+
+	public BackgroundTrainer(AgentController controller, String pathToNeuralNetFile) {
+		this.controller = controller;
+		this.queue = new TrainingQueue(AgentController.TRAINING_QUEUE_CAPACITY);
+		this.snapshot = new AtomicReference<NeuralNetInference>();
+		this.pathToNeuralNetFile = pathToNeuralNetFile;
+		this.batchInputs = new double [AgentController.TRAINING_BATCH_SIZE][TrainingQueue.INPUTS];
+		this.batchOutputs = new double [AgentController.TRAINING_BATCH_SIZE][1];
+		this.running = false;
+		this.warmedUp = false;
+		this.failure = null;
+		this.queuedPatterns = 0;
+		this.trainedPatterns = 0;
+		this.batches = 0;
+	}
+
+	public synchronized void start() {
+		if (this.thread == null) {
+			this.running = true;
+			this.thread = new Thread(this, "network trainer");
+			this.thread.setDaemon(true);
+			this.thread.start();
+		}
+	}
+
+	/**
+	 * Stops the trainer after its current batch and waits for it. Throws an IllegalStateException if training failed.
+	 */
+	public synchronized void stop() {
+		this.running = false;
+		if (this.thread != null) {
+			LockSupport.unpark(this.thread);
+			try {
+				this.thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			this.thread = null;
+		}
+		this.checkFailure();
+	}
+
+	/**
+	 * Queues the pattern for training, or drops it if the trainer is too far behind. Once the patterns of the warm-up
+	 * are queued, no more are taken. Throws an IllegalStateException if training failed.
+	 */
+	public boolean offer(double [] input, double desiredOutput) {
+		this.checkFailure();
+		if (this.queuedPatterns >= AgentController.LOGGING_START || !this.queue.offer(input, desiredOutput)) {
+			return false;
+		}
+		this.queuedPatterns++;
+		return true;
+	}
+
+	/**
+	 * Whether the trainer has trained on all the patterns of the warm-up and published the final weights.
+	 */
+	public boolean isWarmedUp() {
+		return this.warmedUp;
+	}
+
+	/**
+	 * The final weights, or null until the trainer has published them.
+	 */
+	public NeuralNetInference getSnapshot() {
+		return this.snapshot.get();
+	}
+
+	private void checkFailure() {
+		RuntimeException failure = this.failure;
+		if (failure != null) {
+			throw new IllegalStateException("Training the network failed: " + failure.getMessage(), failure);
+		}
+	}
+
+	public long getTrainedPatterns() {
+		return this.trainedPatterns;
+	}
+
+	public long getBatches() {
+		return this.batches;
+	}
+
+	public long getDroppedPatterns() {
+		return this.queue.getDropped();
+	}
+
+	@Override
+	public void run() {
+		try {
+			this.train();
+		} catch (RuntimeException e) {
+			this.failure = e;
+		}
+	}
+
+	private void train() {
+		while (this.running && !this.warmedUp) {
+			
+			// Don't take more patterns than the warm-up still needs
+			int max = (int) Math.min(this.batchInputs.length, AgentController.LOGGING_START - this.trainedPatterns);
+			int patterns = this.queue.drainTo(this.batchInputs, this.batchOutputs, max);
+			if (patterns == 0) {
+				LockSupport.parkNanos(IDLE_NANOS);
+				continue;
+			}
+
+			this.controller.runTraining(Arrays.copyOf(this.batchInputs, patterns), Arrays.copyOf(this.batchOutputs, patterns), AgentController.TRAINING_EPOCHS);
+			this.trainedPatterns += patterns;
+			this.batches++;
+
+			// Publish the final weights once the network has seen the warm-up, save the network and stop training
+			if (this.trainedPatterns >= AgentController.LOGGING_START) {
+				try {
+					this.snapshot.set(NeuralNetInference.of(this.controller.getNeuralNet()));
+				} catch (IllegalArgumentException e) {
+					throw new IllegalStateException("Inference engine not available: " + e.getMessage(), e);
+				}
+				this.controller.saveNeuralNet(this.pathToNeuralNetFile);
+				this.warmedUp = true;
+			}
+		}
+	}
+}
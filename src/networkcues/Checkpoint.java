@@ -0,0 +1,151 @@
+package networkcues;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Checkpoints of a {@link HeadlessRunner}: the settings of the run, the tick, the random streams, the state of every
+ * agent, the trade history of the communication network and the controller with the weights of its network.
+ * The trade journal isn't copied, only its number of records: the restored run continues the journal after them.
+ *
+ * The state is captured into memory on the simulation thread, which only takes as long as copying it, and written to
+ * disk by a background thread, first to a temporary file that then replaces the checkpoint. A checkpoint is restored
+ * by building the same model again from its settings and seed, and overwriting the state that changed since the build,
+ * so the restored run continues exactly as the original would have.
+ */
+public class Checkpoint {
+
+	public static final int MAGIC = 0x4E434350;
+	public static final int VERSION = 3;
+
+	// Writes one checkpoint at a time, in the order they were taken
+	private static final ExecutorService WRITER = Executors.newSingleThreadExecutor(r -> {
+		Thread thread = new Thread(r, "checkpoint writer");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private Checkpoint() {
+	}
+
+	/**
+	 * Captures the state of the runner between two ticks.
+	 */
+	public static byte [] capture(HeadlessRunner runner) throws IOException {
+		NetworkCuesBuilder builder = runner.getBuilder();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(1 << 16);
+		DataOutputStream out = new DataOutputStream(bytes);
+
+		// Settings to build the same model again
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(builder.getAgentCount());
+		out.writeBoolean(builder.isSparseCommunication());
+		out.writeByte(builder.getMode().ordinal());
+		out.writeDouble(builder.getCooperationPercentage());
+		out.writeLong(builder.getRandomStreams().getSeed());
+		TradeJournal journal = builder.getAgentController().getJournal();
+		out.writeLong(journal != null ? journal.getRecords() : 0);
+
+		// Progress of the run
+		out.writeLong(runner.getTick());
+		out.writeLong(runner.getTrades());
+
+		// State of the model
+		builder.getRandomStreams().writeState(out);
+		List<Agent> agents = runner.getAgents();
+		out.writeInt(agents.size());
+		for (Agent agent : agents) {
+			agent.writeState(out);
+		}
+		builder.getCommunication().writeState(out);
+		builder.getAgentController().writeState(out);
+
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Captures the state of the runner and writes it to the file in the background. The future completes once the file
+	 * is in place.
+	 */
+	public static Future<Path> save(HeadlessRunner runner, String fileName) throws IOException {
+		final byte [] state = capture(runner);
+		final Path path = Paths.get(fileName).toAbsolutePath();
+
+		return WRITER.submit(() -> {
+			Files.createDirectories(path.getParent());
+			Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+			Files.write(temporary, state);
+			Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			return path;
+		});
+	}
+
+	/**
+	 * Builds the model of the checkpoint with the given builder, which keeps its paths and pretrained weights,
+	 * and restores the state of the checkpoint into it. The journal of the builder, if it has one, has to be the journal
+	 * of the checkpointed run, and continues after the records it had at the checkpoint.
+	 */
+	public static HeadlessRunner restore(String fileName, NetworkCuesBuilder builder) throws IOException {
+		try (InputStream file = new BufferedInputStream(Files.newInputStream(Paths.get(fileName)))) {
+			DataInputStream in = new DataInputStream(file);
+
+			if (in.readInt() != MAGIC) {
+				throw new IOException(fileName + " isn't a checkpoint.");
+			}
+			int version = in.readInt();
+			if (version != VERSION) {
+				throw new IOException(fileName + " has version " + version + " instead of " + VERSION + ".");
+			}
+
+			// Build the same model
+			builder.setAgentCount(in.readInt());
+			builder.setSparseCommunication(in.readBoolean());
+			builder.setMode(AgentController.Mode.values()[in.readByte()]);
+			builder.setCooperationPercentage(in.readDouble());
+			builder.setSeed(in.readLong());
+			builder.setTradeJournalRecords(in.readLong());
+			HeadlessRunner runner = new HeadlessRunner(builder);
+			runner.build();
+
+			// Restore the progress of the run
+			runner.setTick(in.readLong());
+			runner.setTrades(in.readLong());
+
+			// Restore the state of the model
+			builder.getRandomStreams().readState(in);
+			List<Agent> agents = runner.getAgents();
+			int numberOfAgents = in.readInt();
+			if (numberOfAgents != agents.size()) {
+				throw new IOException("The checkpoint has " + numberOfAgents + " agents instead of " + agents.size() + ".");
+			}
+			for (Agent agent : agents) {
+				agent.readState(in);
+			}
+			builder.getCommunication().readState(in, agents);
+			builder.getAgentController().readState(in);
+
+			if (in.read() != -1) {
+				throw new IOException(fileName + " has data after the end of the checkpoint.");
+			}
+			return runner;
+		}
+	}
+
+	public static HeadlessRunner restore(String fileName) throws IOException {
+		return restore(fileName, new NetworkCuesBuilder());
+	}
+}
@@ -4,6 +4,7 @@ import repast.simphony.space.graph.RepastEdge;
 
 public class CommunicationEdge<T> extends RepastEdge<T> {
 
+	public static final double DEFAULT_WEIGHT = 1;
 	private double weight;
 	private double kinship;
 	private double normalizedDistance;
@@ -11,6 +12,11 @@ public class CommunicationEdge<T> extends RepastEdge<T> {
 	private boolean sameGroup;
 	private TradeEdge.TradeResult lastTradeResult;
 	
+	// When the edge is stored in a pair state table, the table holds the trades, last trade result and group flag
+	private PairStateTable pairState;
+	private int sourceId;
+	private int targetId;
+	
 	public CommunicationEdge(T source, T target, boolean isDirected, double weight) {
 		this.source = source;
 		this.target = target;
@@ -20,6 +26,27 @@ public class CommunicationEdge<T> extends RepastEdge<T> {
 		this.kinship = 0;
 		this.numberOfTrades = 0;
 		this.lastTradeResult = TradeEdge.TradeResult.CC;
+		this.pairState = null;
+	}
+	
+	/**
+	 * Moves the mutable state of the edge into the pair state table. From then on the edge is a view on its row in the table.
+	 */
+	public void storeIn(PairStateTable table) {
+		if (!Agent.class.isInstance(this.source) || !Agent.class.isInstance(this.target)) {
+			throw new IllegalArgumentException("Only edges between agents can be stored in a pair state table.");
+		}
+		
+		this.sourceId = ((Agent) this.source).id;
+		this.targetId = ((Agent) this.target).id;
+		
+		for (int i = 0; i < this.numberOfTrades; i++) {
+			table.addTrade(this.sourceId, this.targetId);
+		}
+		table.setLastTradeResult(this.sourceId, this.targetId, this.lastTradeResult);
+		table.setSameGroup(this.sourceId, this.targetId, this.sameGroup);
+		
+		this.pairState = table;
 	}
 	
 	public void setKinship(double kinship) {
@@ -31,7 +58,11 @@ public class CommunicationEdge<T> extends RepastEdge<T> {
 	}
 	
 	public void setSameGroup(boolean sameGroup) {
-		this.sameGroup = sameGroup;
+		if (this.pairState != null) {
+			this.pairState.setSameGroup(this.sourceId, this.targetId, sameGroup);
+		} else {
+			this.sameGroup = sameGroup;
+		}
 	}
 
 	public void setLastTradeResult(Agent sourceAgent, TradeEdge.TradeResult tradeResult) {
@@ -43,10 +74,19 @@ public class CommunicationEdge<T> extends RepastEdge<T> {
 			default:
 				this.lastTradeResult = tradeResult;
 		}
+		
+		// The table stores the result as seen by the source of the edge
+		if (this.pairState != null) {
+			this.pairState.setLastTradeResult(this.sourceId, this.targetId, this.lastTradeResult);
+		}
 	}
 
 	public void addTrade() {
-		this.numberOfTrades++;
+		if (this.pairState != null) {
+			this.pairState.addTrade(this.sourceId, this.targetId);
+		} else {
+			this.numberOfTrades++;
+		}
 	}
 	
 	public double getKinship() {
@@ -58,14 +98,44 @@ public class CommunicationEdge<T> extends RepastEdge<T> {
 	}
 	
 	public int getNumberOfTrades() {
+		if (this.pairState != null) {
+			return this.pairState.getNumberOfTrades(this.sourceId, this.targetId) / 2;
+		}
 		return numberOfTrades / 2;
 	}
 
+	/**
+	 * Trades recorded on the edge, counting both agents' records of the same trade.
+	 */
+	protected int getRecordedTrades() {
+		if (this.pairState != null) {
+			return this.pairState.getNumberOfTrades(this.sourceId, this.targetId);
+		}
+		return this.numberOfTrades;
+	}
+	
+	/**
+	 * Sets the trade history of the edge, for restoring a checkpoint. The result is the one seen by the source.
+	 */
+	protected void restoreTrades(int recordedTrades, TradeEdge.TradeResult lastTradeResult) {
+		this.lastTradeResult = lastTradeResult;
+		if (this.pairState != null) {
+			this.pairState.setNumberOfTrades(this.sourceId, this.targetId, recordedTrades);
+			this.pairState.setLastTradeResult(this.sourceId, this.targetId, lastTradeResult);
+		} else {
+			this.numberOfTrades = recordedTrades;
+		}
+	}
+
 	public double getNormalizedDistance() {
 		return normalizedDistance;
 	}
 	
 	public TradeEdge.TradeResult getLastTradeResult(Agent sourceAgent) {
+		if (this.pairState != null) {
+			this.lastTradeResult = this.pairState.getLastTradeResult(this.sourceId, this.targetId);
+		}
+		
 		switch(this.lastTradeResult) {
 		case CD:
 			return (sourceAgent == this.source) ? this.lastTradeResult : TradeEdge.TradeResult.DC;
@@ -81,6 +151,9 @@ public class CommunicationEdge<T> extends RepastEdge<T> {
 	}
 	
 	public boolean inSameGroup() {
+		if (this.pairState != null) {
+			return this.pairState.inSameGroup(this.sourceId, this.targetId);
+		}
 		return this.sameGroup;
 	}
 }
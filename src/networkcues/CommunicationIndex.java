@@ -0,0 +1,274 @@
+package networkcues;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.List;
+
+import repast.simphony.space.graph.Network;
+import repast.simphony.space.graph.RepastEdge;
+
+/**
+ * Access to the pair attributes of the communication network.
+ * In the complete network every pair of agents has a communication edge. In the sparse network only the
+ * pairs that carry state have one (neighbors, kin and agents that traded with each other) and the attributes
+ * of every other pair are derived from the spatial and kinship indices, which gives the same answers.
+ */
+public class CommunicationIndex {
+
+	private final Network<Object> commNetwork;
+	private SpatialIndex spatialIndex;
+	private KinshipIndex kinshipIndex;
+	private PairStateTable pairState;
+	private boolean sparse;
+
+	public CommunicationIndex(Network<Object> commNetwork) {
+		this.commNetwork = commNetwork;
+		this.sparse = false;
+		this.pairState = null;
+	}
+
+	public void setIndices(SpatialIndex spatialIndex, KinshipIndex kinshipIndex, boolean sparse) {
+		this.spatialIndex = spatialIndex;
+		this.kinshipIndex = kinshipIndex;
+		this.sparse = sparse;
+	}
+
+	/**
+	 * Keeps the trade history of every pair in the given table instead of on the edges. Edges that already exist become views on the table.
+	 */
+	@SuppressWarnings("unchecked")
+	public void setPairStateTable(PairStateTable pairState) {
+		this.pairState = pairState;
+		
+		for (RepastEdge<Object> edge : this.commNetwork.getEdges()) {
+			if (CommunicationEdge.class.isInstance(edge)) {
+				((CommunicationEdge<Object>) edge).storeIn(pairState);
+			}
+		}
+	}
+
+	public PairStateTable getPairStateTable() {
+		return this.pairState;
+	}
+
+	public Network<Object> getNetwork() {
+		return this.commNetwork;
+	}
+
+	public boolean isSparse() {
+		return this.sparse;
+	}
+
+	@SuppressWarnings("unchecked")
+	public CommunicationEdge<Object> getEdge(Agent agent1, Agent agent2) {
+		RepastEdge<Object> edge = this.commNetwork.getEdge(agent1, agent2);
+
+		if (edge != null && CommunicationEdge.class.isInstance(edge)) {
+			return (CommunicationEdge<Object>) edge;
+		}
+
+		return null;
+	}
+
+	/**
+	 * Returns the edge between the agents. In the sparse network a missing edge is created, so that it can hold the trade history.
+	 */
+	public CommunicationEdge<Object> getOrCreateEdge(Agent agent1, Agent agent2) {
+		CommunicationEdge<Object> edge = this.getEdge(agent1, agent2);
+
+		if (edge == null && this.sparse && agent1 != agent2) {
+			edge = this.createEdge(agent1, agent2);
+		}
+
+		return edge;
+	}
+
+	/**
+	 * Creates the edge between the agents with its derived attributes. The agent with the lowest id is the source,
+	 * just like in the complete network.
+	 */
+	@SuppressWarnings("unchecked")
+	public CommunicationEdge<Object> createEdge(Agent agent1, Agent agent2) {
+		Agent source = agent1.id < agent2.id ? agent1 : agent2;
+		Agent target = source == agent1 ? agent2 : agent1;
+
+		CommunicationEdge<Object> edge = (CommunicationEdge<Object>) this.commNetwork.addEdge(source, target);
+		if (this.pairState != null) {
+			edge.storeIn(this.pairState);
+		}
+		edge.setKinship(this.kinshipIndex.getKinship(source, target));
+		edge.setNormalizedDistance(SpatialIndex.getNormalizedDistance(this.spatialIndex.getDistance(source, target)));
+		edge.setSameGroup(source.profile.getGroupID() == target.profile.getGroupID());
+
+		return edge;
+	}
+
+	/**
+	 * Resolves the edge between the agents and the attributes derived from it once, for a trade between them.
+	 */
+	public PairContext getPairContext(Agent agent1, Agent agent2) {
+		CommunicationEdge<Object> edge = this.getEdge(agent1, agent2);
+
+		if (edge != null) {
+			return new PairContext(this, agent1, agent2, edge, edge.getNormalizedDistance(), edge.getKinship());
+		}
+
+		if (this.sparse) {
+			return new PairContext(this, agent1, agent2, null,
+					SpatialIndex.getNormalizedDistance(this.spatialIndex.getDistance(agent1, agent2)), this.kinshipIndex.getKinship(agent1, agent2));
+		}
+
+		return new PairContext(this, agent1, agent2, null, 0, Double.POSITIVE_INFINITY);
+	}
+
+	/**
+	 * Records a trade between the agents. Like {@link CommunicationEdge#setLastTradeResult(Agent, TradeEdge.TradeResult)},
+	 * the trade result is stored as seen by the source of the pair, whichever agent reports it.
+	 */
+	public void recordTrade(Agent agent1, Agent agent2, TradeEdge.TradeResult tradeResult) {
+		if (this.pairState != null && agent1 != agent2) {
+			this.pairState.addTrade(agent1.id, agent2.id);
+			this.pairState.setLastTradeResult(Math.min(agent1.id, agent2.id), Math.max(agent1.id, agent2.id), tradeResult);
+			return;
+		}
+
+		CommunicationEdge<Object> edge = this.getOrCreateEdge(agent1, agent2);
+		if (edge != null) {
+			edge.addTrade();
+			edge.setLastTradeResult(agent1, tradeResult);
+		}
+	}
+
+	/**
+	 * Writes the trade history of every pair that traded, for a checkpoint: the ids of the pair (lowest first), the
+	 * number of recorded trades and the last result as seen by the lowest id. The list ends with -1.
+	 */
+	@SuppressWarnings("unchecked")
+	public void writeState(DataOutput out) throws IOException {
+		if (this.pairState != null) {
+			int numberOfAgents = this.pairState.getNumberOfAgents();
+			for (int i = 0; i < numberOfAgents; i++) {
+				for (int j = i + 1; j < numberOfAgents; j++) {
+					int trades = this.pairState.getNumberOfTrades(i, j);
+					if (trades > 0) {
+						writePair(out, i, j, trades, this.pairState.getLastTradeResult(i, j));
+					}
+				}
+			}
+		} else {
+			for (RepastEdge<Object> edge : this.commNetwork.getEdges()) {
+				if (edge instanceof CommunicationEdge && ((CommunicationEdge<Object>) edge).getRecordedTrades() > 0) {
+					CommunicationEdge<Object> communicationEdge = (CommunicationEdge<Object>) edge;
+					Agent source = (Agent) edge.getSource();
+					Agent target = (Agent) edge.getTarget();
+					Agent lowest = source.id < target.id ? source : target;
+					writePair(out, lowest.id, Math.max(source.id, target.id), communicationEdge.getRecordedTrades(), communicationEdge.getLastTradeResult(lowest));
+				}
+			}
+		}
+		out.writeInt(-1);
+	}
+	
+	/**
+	 * Restores the trade history of a checkpoint. The agents are listed by id.
+	 */
+	public void readState(DataInput in, List<Agent> agents) throws IOException {
+		TradeEdge.TradeResult [] results = TradeEdge.TradeResult.values();
+		for (int i = in.readInt(); i >= 0; i = in.readInt()) {
+			int j = in.readInt();
+			int trades = in.readInt();
+			TradeEdge.TradeResult lastTradeResult = results[in.readByte()];
+			
+			if (this.pairState != null) {
+				this.pairState.setNumberOfTrades(i, j, trades);
+				this.pairState.setLastTradeResult(i, j, lastTradeResult);
+				continue;
+			}
+			
+			CommunicationEdge<Object> edge = this.getOrCreateEdge(agents.get(i), agents.get(j));
+			if (edge == null) {
+				throw new IOException("There is no communication edge between agents " + i + " and " + j + ".");
+			}
+			edge.restoreTrades(trades, edge.getSource() == agents.get(i) ? lastTradeResult : PairStateTable.flip(lastTradeResult));
+		}
+	}
+	
+	private static void writePair(DataOutput out, int id1, int id2, int trades, TradeEdge.TradeResult lastTradeResult) throws IOException {
+		out.writeInt(id1);
+		out.writeInt(id2);
+		out.writeInt(trades);
+		out.writeByte(lastTradeResult.ordinal());
+	}
+
+	public double getWeight(Agent agent1, Agent agent2) {
+		CommunicationEdge<Object> edge = this.getEdge(agent1, agent2);
+
+		if (edge != null) {
+			return edge.getWeight();
+		}
+
+		return this.sparse ? CommunicationEdge.DEFAULT_WEIGHT : Double.NaN;
+	}
+
+	public double getKinship(Agent agent1, Agent agent2) {
+		CommunicationEdge<Object> edge = this.getEdge(agent1, agent2);
+
+		if (edge != null) {
+			return edge.getKinship();
+		}
+
+		return this.sparse ? this.kinshipIndex.getKinship(agent1, agent2) : Double.POSITIVE_INFINITY;
+	}
+
+	public double getNormalizedDistance(Agent agent1, Agent agent2) {
+		CommunicationEdge<Object> edge = this.getEdge(agent1, agent2);
+
+		if (edge != null) {
+			return edge.getNormalizedDistance();
+		}
+
+		return this.sparse ? SpatialIndex.getNormalizedDistance(this.spatialIndex.getDistance(agent1, agent2)) : 0;
+	}
+
+	public boolean inSameGroup(Agent agent1, Agent agent2) {
+		if (this.pairState != null && agent1 != agent2) {
+			return this.pairState.inSameGroup(agent1.id, agent2.id);
+		}
+
+		CommunicationEdge<Object> edge = this.getEdge(agent1, agent2);
+
+		if (edge != null) {
+			return edge.inSameGroup();
+		}
+
+		return agent1.profile.getGroupID() == agent2.profile.getGroupID();
+	}
+
+	public int getNumberOfTrades(Agent agent1, Agent agent2) {
+		if (this.pairState != null && agent1 != agent2) {
+			return this.pairState.getNumberOfTrades(agent1.id, agent2.id) / 2;
+		}
+
+		CommunicationEdge<Object> edge = this.getEdge(agent1, agent2);
+		return edge != null ? edge.getNumberOfTrades() : 0;
+	}
+
+	/**
+	 * Last trade result between the agents as seen by agent1, or null if the complete network has no edge to hold it.
+	 */
+	public TradeEdge.TradeResult getLastTradeResult(Agent agent1, Agent agent2) {
+		if (this.pairState != null && agent1 != agent2) {
+			return this.pairState.getLastTradeResult(agent1.id, agent2.id);
+		}
+
+		CommunicationEdge<Object> edge = this.getEdge(agent1, agent2);
+
+		if (edge != null) {
+			return edge.getLastTradeResult(agent1);
+		}
+
+		// Agents without an edge in the sparse network have never traded, which is how a new edge starts out
+		return this.sparse ? TradeEdge.TradeResult.CC : null;
+	}
+}
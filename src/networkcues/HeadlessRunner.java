@@ -0,0 +1,246 @@
+package networkcues;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+import repast.simphony.context.Context;
+import repast.simphony.context.DefaultContext;
+import repast.simphony.space.graph.Network;
+import repast.simphony.util.collections.IndexedIterable;
+
+/**
+ * Runs the model without the Repast GUI or scheduler. The context is built with {@link NetworkCuesBuilder}, and the
+ * phases that the schedule would run are called directly, in the same order:
+ * odd ticks close the market and let every agent prepare for trade, even ticks open the market, let every agent find
+ * a partner, resolve the deferred trades and train the controller on the batch of the tick.
+ * Like the schedule, the agents act in a new random order every time. The order is drawn from the SCHEDULE stream
+ * of the run, so it is reproducible from the seed and continues from a checkpoint.
+ *
+ * A run can be checkpointed every few ticks and continued later from the checkpoint, see {@link Checkpoint}.
+ *
+ * Usage: HeadlessRunner [--ticks n] [--agents n] [--mode mode] [--cooperation p] [--seed n] [--sparse] [--report n]
+ *                       [--checkpoint file] [--checkpoint-every n] [--restore file]
+ */
+public class HeadlessRunner {
+
+	public static final int DEFAULT_TICKS = 1000;
+
+	private final NetworkCuesBuilder builder;
+	private Context<Object> context;
+	private List<Agent> agents;
+	private Agent [] order;
+	private RandomStream schedule;
+	private Market market;
+	private AgentController controller;
+	private Network<Object> tradeNetwork;
+	private Metrics metrics;
+	private boolean reportMetrics;
+	private long tick;
+	private long trades;
+
+	public HeadlessRunner(NetworkCuesBuilder builder) {
+		this.builder = builder;
+		this.reportMetrics = true;
+		this.tick = 0;
+		this.trades = 0;
+	}
+
+	@SuppressWarnings("unchecked")
+	public void build() {
+		this.context = this.builder.build(new DefaultContext<Object>("networkcues"));
+
+		// Agents in order of id, the order in which they were added
+		IndexedIterable<Object> collection = this.context.getObjects(Agent.class);
+		this.agents = new ArrayList<Agent>(collection.size());
+		for (int i = 0; i < collection.size(); i++) {
+			this.agents.add((Agent) collection.get(i));
+		}
+
+		this.order = new Agent [this.agents.size()];
+		this.schedule = this.builder.getRandomStreams().get(RandomStreams.Phase.SCHEDULE, 0);
+
+		this.market = this.builder.getMarket();
+		this.controller = this.builder.getAgentController();
+		this.tradeNetwork = (Network<Object>) this.context.getProjection("trade network");
+		this.metrics = Metrics.ENABLED ? new Metrics(this.reportMetrics) : null;
+	}
+
+	/**
+	 * Runs the next tick.
+	 */
+	public void step() {
+		this.tick++;
+		TradeJournal journal = this.controller.getJournal();
+		if (journal != null) {
+			journal.setTick(this.tick);
+		}
+
+		if (this.tick % 2 == 1) {
+			this.market.close();
+			for (Agent agent : this.shuffle()) {
+				agent.prepareForTrade();
+			}
+		} else {
+			this.market.open();
+			for (Agent agent : this.shuffle()) {
+				agent.findTradingPartner();
+			}
+			this.market.resolveTrades();
+			this.trades += this.tradeNetwork.numEdges();
+			this.controller.flushTraining();
+			if (this.metrics != null) {
+				this.metrics.endOfTick(this.trades);
+			}
+		}
+	}
+
+	/**
+	 * The agents in a random order, like the schedule shuffles the agents that act at the same tick.
+	 * The shuffle starts from the order of id, so the order only depends on the stream.
+	 */
+	private Agent [] shuffle() {
+		this.agents.toArray(this.order);
+		for (int i = this.order.length - 1; i > 0; i--) {
+			int j = this.schedule.nextIntFromTo(0, i);
+			Agent agent = this.order[i];
+			this.order[i] = this.order[j];
+			this.order[j] = agent;
+		}
+		return this.order;
+	}
+
+	/**
+	 * Ends the run the way the schedule does: stops the trainer and closes the journal.
+	 */
+	public void end() {
+		if (this.controller == null) {
+			return;
+		}
+		this.controller.stopTraining();
+		if (this.controller.getJournal() != null) {
+			this.controller.getJournal().close();
+		}
+	}
+
+	public long getTick() {
+		return this.tick;
+	}
+
+	public long getTrades() {
+		return this.trades;
+	}
+
+	/**
+	 * Whether the metrics snapshots are printed during the run, set before it's built.
+	 */
+	void setReportMetrics(boolean reportMetrics) {
+		this.reportMetrics = reportMetrics;
+	}
+
+	void setTick(long tick) {
+		this.tick = tick;
+	}
+
+	void setTrades(long trades) {
+		this.trades = trades;
+	}
+
+	public Context<Object> getContext() {
+		return this.context;
+	}
+
+	public NetworkCuesBuilder getBuilder() {
+		return this.builder;
+	}
+
+	/**
+	 * The agents in order of id.
+	 */
+	public List<Agent> getAgents() {
+		return this.agents;
+	}
+
+	/**
+	 * Waits for the previous checkpoint to be written before taking the next one, so checkpoints don't pile up in memory
+	 * behind a slow disk and a checkpoint that couldn't be written stops the run.
+	 */
+	private static Future<Path> saveCheckpoint(HeadlessRunner runner, String checkpoint, Future<Path> previous) throws IOException, InterruptedException, ExecutionException {
+		if (previous != null) {
+			previous.get();
+		}
+		return Checkpoint.save(runner, checkpoint);
+	}
+
+	public static void main(String [] args) throws IOException, InterruptedException, ExecutionException {
+		NetworkCuesBuilder builder = new NetworkCuesBuilder();
+
+		// Read the parameters
+		Arguments arguments = new Arguments("HeadlessRunner [--ticks n] [--agents n] [--mode " + Arrays.toString(AgentController.Mode.values())
+				+ "] [--cooperation p] [--seed n] [--sparse] [--report n] [--checkpoint file] [--checkpoint-every n] [--restore file]", args, "--sparse");
+		long ticks = arguments.get("--ticks", Long::valueOf, (long) DEFAULT_TICKS);
+		builder.setAgentCount(arguments.get("--agents", Integer::valueOf, builder.getAgentCount()));
+		builder.setMode(arguments.get("--mode", AgentController.Mode::valueOf, builder.getMode()));
+		builder.setCooperationPercentage(arguments.get("--cooperation", Double::valueOf, builder.getCooperationPercentage()));
+		Long seed = arguments.get("--seed", Long::valueOf, null);
+		if (seed != null) {
+			builder.setSeed(seed);
+		}
+		if (arguments.has("--sparse")) {
+			builder.setSparseCommunication(true);
+		}
+		long report = arguments.get("--report", Long::valueOf, 0L);
+		String checkpoint = arguments.get("--checkpoint", Function.identity(), null);
+		long checkpointInterval = arguments.get("--checkpoint-every", Long::valueOf, 0L);
+		String restore = arguments.get("--restore", Function.identity(), null);
+		arguments.checkUnknown();
+
+		// Build the model, or the model of the checkpoint
+		long buildStart = System.nanoTime();
+		HeadlessRunner runner;
+		if (restore != null) {
+			runner = Checkpoint.restore(restore, builder);
+		} else {
+			runner = new HeadlessRunner(builder);
+			runner.build();
+		}
+		double buildSeconds = (System.nanoTime() - buildStart) / 1e9;
+		long firstTick = runner.getTick();
+		long firstTrades = runner.getTrades();
+
+		// Run the ticks in a tight loop
+		long start = System.nanoTime();
+		long lastReport = start;
+		Future<Path> lastCheckpoint = null;
+		while (runner.getTick() < ticks) {
+			runner.step();
+			if (report > 0 && runner.getTick() % report == 0) {
+				long now = System.nanoTime();
+				System.out.println(String.format("tick %d: %.1f ticks/s", runner.getTick(), report / ((now - lastReport) / 1e9)));
+				lastReport = now;
+			}
+			if (checkpoint != null && checkpointInterval > 0 && runner.getTick() % checkpointInterval == 0) {
+				lastCheckpoint = saveCheckpoint(runner, checkpoint, lastCheckpoint);
+			}
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		
+		// Checkpoint the end of the run, and wait for the checkpoints to be written
+		if (checkpoint != null && (checkpointInterval <= 0 || runner.getTick() % checkpointInterval != 0)) {
+			lastCheckpoint = saveCheckpoint(runner, checkpoint, lastCheckpoint);
+		}
+		if (lastCheckpoint != null) {
+			System.out.println("checkpoint written to " + lastCheckpoint.get());
+		}
+		runner.end();
+
+		System.out.println(String.format("built in %.2f s", buildSeconds));
+		System.out.println(String.format("%d ticks in %.2f s: %.1f ticks/s, %d trades, %.1f trades/s", runner.getTick() - firstTick, seconds,
+				(runner.getTick() - firstTick) / seconds, runner.getTrades() - firstTrades, (runner.getTrades() - firstTrades) / seconds));
+	}
+}
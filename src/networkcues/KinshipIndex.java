@@ -0,0 +1,164 @@
+package networkcues;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+import repast.simphony.space.graph.Network;
+
+/**
+ * Kinship distances (number of hops in the kinship network) between all agents that are closer
+ * than the maximum hop count. Every agent runs its own breadth first search, which stops at the
+ * maximum hop count, so on a sparse family graph the work is close to linear in the number of agents.
+ * The searches run in parallel and every agent only keeps its kin, sorted by position.
+ */
+public class KinshipIndex {
+
+	private final int maxHops;
+	private final int [] positionOfId;
+	private final int [][] kinPositions;
+	private final byte [][] kinHops;
+
+	public KinshipIndex(Iterable<?> collection, Network<Object> kinshipNetwork) {
+		this(collection, kinshipNetwork, NetworkCuesBuilder.LEN_FAMILY);
+	}
+
+	public KinshipIndex(Iterable<?> collection, Network<Object> kinshipNetwork, int maxHops) {
+
+		if (maxHops < 1 || maxHops > Byte.MAX_VALUE) {
+			throw new IllegalArgumentException("The maximum number of hops must be between 1 and " + Byte.MAX_VALUE + ".");
+		}
+
+		// List all the agents in the collection
+		int numberOfAgents = 0;
+		int maxId = -1;
+		for (Object o : collection) {
+			if (o instanceof Agent) {
+				numberOfAgents++;
+				maxId = Math.max(maxId, ((Agent) o).id);
+			}
+		}
+
+		Agent [] agents = new Agent [numberOfAgents];
+		this.maxHops = maxHops;
+		this.positionOfId = new int [maxId + 1];
+		int position = 0;
+		for (Object o : collection) {
+			if (o instanceof Agent) {
+				agents[position] = (Agent) o;
+				this.positionOfId[agents[position].id] = position;
+				position++;
+			}
+		}
+
+		// Copy the kinship network into adjacency arrays, so the searches don't have to go through the network
+		final int [][] adjacency = new int [numberOfAgents][];
+		int [] buffer = new int [16];
+		for (int i = 0; i < numberOfAgents; i++) {
+			int degree = 0;
+			for (Object adjacent : kinshipNetwork.getAdjacent(agents[i])) {
+				if (adjacent instanceof Agent && adjacent != agents[i]) {
+					if (degree == buffer.length) {
+						buffer = Arrays.copyOf(buffer, degree * 2);
+					}
+					buffer[degree++] = this.positionOfId[((Agent) adjacent).id];
+				}
+			}
+			adjacency[i] = Arrays.copyOf(buffer, degree);
+		}
+
+		// Run a bounded breadth first search from every agent
+		this.kinPositions = new int [numberOfAgents][];
+		this.kinHops = new byte [numberOfAgents][];
+		final ThreadLocal<SearchBuffers> searchBuffers = ThreadLocal.withInitial(() -> new SearchBuffers(adjacency.length));
+		IntStream.range(0, numberOfAgents).parallel().forEach(source -> this.search(source, adjacency, searchBuffers.get()));
+	}
+
+	private void search(int source, int [][] adjacency, SearchBuffers buffers) {
+
+		int stamp = source + 1;
+		int [] queue = buffers.queue;
+		int head = 0;
+		int tail = 0;
+
+		queue[tail++] = source;
+		buffers.visited[source] = stamp;
+		buffers.hops[source] = 0;
+
+		while (head < tail) {
+			int current = queue[head++];
+			int hops = buffers.hops[current] + 1;
+
+			// Anything at or beyond the maximum number of hops is not considered kin
+			if (hops >= this.maxHops) {
+				continue;
+			}
+
+			for (int next : adjacency[current]) {
+				if (buffers.visited[next] != stamp) {
+					buffers.visited[next] = stamp;
+					buffers.hops[next] = (byte) hops;
+					queue[tail++] = next;
+				}
+			}
+		}
+
+		// Store the kin of the source agent sorted by position
+		int [] positions = Arrays.copyOf(queue, tail);
+		Arrays.sort(positions);
+		byte [] hops = new byte [tail];
+		for (int i = 0; i < tail; i++) {
+			hops[i] = buffers.hops[positions[i]];
+		}
+
+		this.kinPositions[source] = positions;
+		this.kinHops[source] = hops;
+	}
+
+	public int size() {
+		return this.kinPositions.length;
+	}
+
+	public int getMaxHops() {
+		return this.maxHops;
+	}
+
+	/**
+	 * Number of hops between the agents at the given positions, or -1 if they are not within the maximum hop count.
+	 */
+	public int getHops(int position1, int position2) {
+		int k = Arrays.binarySearch(this.kinPositions[position1], position2);
+		return k < 0 ? -1 : this.kinHops[position1][k];
+	}
+
+	/**
+	 * Kinship distance between the agents at the given positions, which is infinite if they are not within the maximum hop count.
+	 */
+	public double getKinship(int position1, int position2) {
+		int hops = this.getHops(position1, position2);
+		return hops < 0 ? Double.POSITIVE_INFINITY : hops;
+	}
+
+	public double getKinship(Agent agent1, Agent agent2) {
+		return this.getKinship(this.positionOfId[agent1.id], this.positionOfId[agent2.id]);
+	}
+
+	/**
+	 * Positions of the kin of the agent at the given position (including the agent itself), in ascending order.
+	 * The returned array is shared, so it should not be modified.
+	 */
+	public int [] getKinPositions(int position) {
+		return this.kinPositions[position];
+	}
+
+	private static class SearchBuffers {
+		private final int [] visited;
+		private final int [] queue;
+		private final byte [] hops;
+
+		private SearchBuffers(int numberOfAgents) {
+			this.visited = new int [numberOfAgents];
+			this.queue = new int [numberOfAgents];
+			this.hops = new byte [numberOfAgents];
+		}
+	}
+}
@@ -0,0 +1,512 @@
+package networkcues;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.stream.IntStream;
+
+import repast.simphony.engine.schedule.ScheduleParameters;
+import repast.simphony.engine.schedule.ScheduledMethod;
+import repast.simphony.space.graph.Network;
+import repast.simphony.space.graph.RepastEdge;
+
+/**
+ * Per-tick index of the agents that are looking for a trading partner.
+ * After the agents prepared for trade, the market buckets the unpartnered agents by what they sell and
+ * which set of goods they buy. A partner search then only visits the buckets of agents who sell something
+ * the agent buys and who buy what the agent sells. Agents leave the market as soon as they have a partner.
+ */
+public class Market {
+
+	public static enum Matching { PER_AGENT, GREEDY, CONCURRENT };
+	public static final Matching MATCHING = Matching.PER_AGENT;
+	public static final int MATCHING_CANDIDATES = 8;
+	public static final int MAX_CLAIM_ATTEMPTS = 64;
+
+	// Let partnering only record the pairs and resolve all the trades of the tick in one phase
+	public static final boolean DEFERRED_RESOLUTION = false;
+
+	// The resolution phase runs after the agents found their partners and before the controller trains at the end of the tick
+	public static final double RESOLUTION_PRIORITY = -100;
+
+	private static final int FREE = -1;
+
+	private static final int NUMBER_OF_MASKS = 1 << Good.LEN_TYPE;
+
+	private final Network<Object> tradeNetwork;
+	private final CommunicationIndex communication;
+
+	// Agents are indexed by id, which is also the order in which they were added to the context
+	private Agent [] agents;
+	private boolean [] partnered;
+	private boolean open;
+
+	// Buckets of agents with the same selling type and buying mask, the agents of bucket b are
+	// bucketAgents[bucketStart[b]] up to bucketAgents[bucketStart[b + 1]], sorted by id
+	private int numberOfBuckets;
+	private final int [] bucketOfKey;
+	private int [] bucketKey;
+	private int [] bucketStart;
+	private int [] bucketCursor;
+	private int [] bucketAgents;
+
+	// Buckets that sell type t and buy type w are compatibleBuckets[compatibleStart[t * LEN_TYPE + w]] up to compatibleBuckets[compatibleStart[t * LEN_TYPE + w + 1]]
+	private final int [] compatibleStart;
+	private int [] compatibleBuckets;
+
+	public Market(Network<Object> tradeNetwork, CommunicationIndex communication) {
+		this.tradeNetwork = tradeNetwork;
+		this.communication = communication;
+		this.agents = new Agent [0];
+		this.partnered = new boolean [0];
+		this.open = false;
+
+		this.bucketOfKey = new int [Good.LEN_TYPE * NUMBER_OF_MASKS];
+		this.bucketKey = new int [0];
+		this.bucketStart = new int [1];
+		this.bucketCursor = new int [0];
+		this.bucketAgents = new int [0];
+		this.compatibleStart = new int [Good.LEN_TYPE * Good.LEN_TYPE + 1];
+		this.compatibleBuckets = new int [0];
+	}
+
+	public void setAgents(Iterable<?> collection) {
+		int maxId = -1;
+		for (Object o : collection) {
+			if (o instanceof Agent) {
+				maxId = Math.max(maxId, ((Agent) o).id);
+			}
+		}
+
+		this.agents = new Agent [maxId + 1];
+		for (Object o : collection) {
+			if (o instanceof Agent) {
+				this.agents[((Agent) o).id] = (Agent) o;
+			}
+		}
+		this.partnered = new boolean [maxId + 1];
+		this.bucketAgents = new int [maxId + 1];
+	}
+
+	public boolean isOpen() {
+		return this.open;
+	}
+
+	/**
+	 * Closes the market and clears the trades of the last tick, before the agents change what they buy and sell.
+	 */
+	@ScheduledMethod(start = 1, interval = 2, priority = ScheduleParameters.FIRST_PRIORITY)
+	public void close() {
+		this.open = false;
+		this.tradeNetwork.removeEdges();
+	}
+
+	/**
+	 * Builds the index of the agents that are looking for a partner. This runs after every agent prepared for trade.
+	 */
+	@ScheduledMethod(start = 2, interval = 2, priority = ScheduleParameters.FIRST_PRIORITY)
+	public void open() {
+
+		// Count the agents in every bucket
+		Arrays.fill(this.bucketOfKey, -1);
+		this.numberOfBuckets = 0;
+		int [] bucketSize = new int [this.agents.length];
+		for (int i = 0; i < this.agents.length; i++) {
+			Agent agent = this.agents[i];
+			this.partnered[i] = agent == null || agent.selling == null || this.tradeNetwork.getDegree(agent) > 0;
+			if (this.partnered[i]) {
+				continue;
+			}
+
+			int key = agent.selling.type * NUMBER_OF_MASKS + agent.getBuyingMask();
+			if (this.bucketOfKey[key] < 0) {
+				if (this.numberOfBuckets == this.bucketKey.length) {
+					this.bucketKey = Arrays.copyOf(this.bucketKey, Math.max(16, this.numberOfBuckets * 2));
+				}
+				this.bucketKey[this.numberOfBuckets] = key;
+				this.bucketOfKey[key] = this.numberOfBuckets++;
+			}
+			bucketSize[this.bucketOfKey[key]]++;
+		}
+
+		// Fill in the buckets, walking through the agents by id so every bucket is sorted
+		this.bucketStart = new int [this.numberOfBuckets + 1];
+		for (int b = 0; b < this.numberOfBuckets; b++) {
+			this.bucketStart[b + 1] = this.bucketStart[b] + bucketSize[b];
+		}
+		this.bucketCursor = Arrays.copyOf(this.bucketStart, this.numberOfBuckets);
+		for (int i = 0; i < this.agents.length; i++) {
+			if (!this.partnered[i]) {
+				Agent agent = this.agents[i];
+				int b = this.bucketOfKey[agent.selling.type * NUMBER_OF_MASKS + agent.getBuyingMask()];
+				this.bucketAgents[this.bucketCursor[b]++] = i;
+			}
+		}
+		System.arraycopy(this.bucketStart, 0, this.bucketCursor, 0, this.numberOfBuckets);
+
+		// List the buckets for every (selling type, buying type) combination
+		Arrays.fill(this.compatibleStart, 0);
+		for (int b = 0; b < this.numberOfBuckets; b++) {
+			int sellingType = this.bucketKey[b] / NUMBER_OF_MASKS;
+			int mask = this.bucketKey[b] % NUMBER_OF_MASKS;
+			for (int w = 0; w < Good.LEN_TYPE; w++) {
+				if ((mask & (1 << w)) != 0) {
+					this.compatibleStart[sellingType * Good.LEN_TYPE + w + 1]++;
+				}
+			}
+		}
+		for (int c = 0; c < Good.LEN_TYPE * Good.LEN_TYPE; c++) {
+			this.compatibleStart[c + 1] += this.compatibleStart[c];
+		}
+		this.compatibleBuckets = new int [this.compatibleStart[Good.LEN_TYPE * Good.LEN_TYPE]];
+		int [] fill = Arrays.copyOf(this.compatibleStart, Good.LEN_TYPE * Good.LEN_TYPE);
+		for (int b = 0; b < this.numberOfBuckets; b++) {
+			int sellingType = this.bucketKey[b] / NUMBER_OF_MASKS;
+			int mask = this.bucketKey[b] % NUMBER_OF_MASKS;
+			for (int w = 0; w < Good.LEN_TYPE; w++) {
+				if ((mask & (1 << w)) != 0) {
+					this.compatibleBuckets[fill[sellingType * Good.LEN_TYPE + w]++] = b;
+				}
+			}
+		}
+
+		this.open = true;
+
+		// Match all the agents at once, instead of letting every agent search for itself
+		if (Market.MATCHING == Matching.GREEDY) {
+			this.matchGreedily();
+		} else if (Market.MATCHING == Matching.CONCURRENT) {
+			this.matchConcurrently();
+		}
+	}
+
+	/**
+	 * Whether the agents search for their own partner, or the market has already matched them up.
+	 */
+	public boolean isMatchingPerAgent() {
+		return Market.MATCHING == Matching.PER_AGENT;
+	}
+
+	public boolean isPartnered(Agent agent) {
+		return this.partnered[agent.id];
+	}
+
+	/**
+	 * Finds the partner for the agent, the same way {@link Agent#findTradingPartner()} does: the first compatible agent
+	 * (by id), or when the agent considers distance, the closest compatible agent.
+	 */
+	public Agent findPartner(Agent agent) {
+
+		if (this.partnered[agent.id]) {
+			return null;
+		}
+
+		// Find the first agent that sells something this agent buys and buys what this agent sells
+		int first = this.findFirstCompatible(agent);
+		if (first < 0) {
+			return null;
+		}
+		int sellingType = agent.selling.type;
+		int buyingMask = agent.getBuyingMask();
+
+		// Agents that don't care about the partner's distance take the first one
+		Agent bestPartner = this.agents[first];
+		if (!agent.profile.shouldConsiderDistanceWhenPartnering()) {
+			Metrics.CANDIDATES_SCANNED.increment();
+			return bestPartner;
+		}
+
+		// Otherwise choose the closest partner (the first one, if several are equally close)
+		double distanceToPartner = this.communication.getWeight(agent, bestPartner);
+		int scanned = 1;
+		for (int t = 0; t < Good.LEN_TYPE; t++) {
+			if ((buyingMask & (1 << t)) == 0) {
+				continue;
+			}
+			int c = t * Good.LEN_TYPE + sellingType;
+			for (int k = this.compatibleStart[c]; k < this.compatibleStart[c + 1]; k++) {
+				int b = this.compatibleBuckets[k];
+				for (int j = this.bucketCursor[b]; j < this.bucketStart[b + 1]; j++) {
+					Agent other = this.agents[this.bucketAgents[j]];
+					if (this.partnered[other.id]) {
+						continue;
+					}
+					double weight = this.communication.getWeight(agent, other);
+					scanned++;
+					if (weight < distanceToPartner || (weight == distanceToPartner && other.id < bestPartner.id)) {
+						distanceToPartner = weight;
+						bestPartner = other;
+					}
+				}
+			}
+		}
+
+		Metrics.CANDIDATES_SCANNED.add(scanned);
+		return bestPartner;
+	}
+
+	/**
+	 * Id of the first unpartnered agent that sells something the agent buys and buys what the agent sells, or -1 if there is none.
+	 */
+	private int findFirstCompatible(Agent agent) {
+		int first = Integer.MAX_VALUE;
+		int sellingType = agent.selling.type;
+		int buyingMask = agent.getBuyingMask();
+		for (int t = 0; t < Good.LEN_TYPE; t++) {
+			if ((buyingMask & (1 << t)) == 0) {
+				continue;
+			}
+			int c = t * Good.LEN_TYPE + sellingType;
+			for (int k = this.compatibleStart[c]; k < this.compatibleStart[c + 1]; k++) {
+				int b = this.compatibleBuckets[k];
+
+				// Agents that found a partner are skipped once and for all
+				while (this.bucketCursor[b] < this.bucketStart[b + 1] && this.partnered[this.bucketAgents[this.bucketCursor[b]]]) {
+					this.bucketCursor[b]++;
+				}
+				if (this.bucketCursor[b] < this.bucketStart[b + 1]) {
+					first = Math.min(first, this.bucketAgents[this.bucketCursor[b]]);
+				}
+			}
+		}
+
+		return first == Integer.MAX_VALUE ? -1 : first;
+	}
+
+	/**
+	 * Matches up all the agents in one pass. Every agent proposes its MATCHING_CANDIDATES first compatible agents,
+	 * the proposals are accepted from the closest (lowest communication weight) to the furthest as long as both agents
+	 * are still free, and agents that are left over take the first compatible agent. All trades are then made in one batch.
+	 */
+	private void matchGreedily() {
+
+		// Collect the candidate pairs of the compatibility graph
+		int numberOfPairs = 0;
+		int [] pairAgent1 = new int [this.agents.length * MATCHING_CANDIDATES];
+		int [] pairAgent2 = new int [this.agents.length * MATCHING_CANDIDATES];
+		double [] pairWeight = new double [this.agents.length * MATCHING_CANDIDATES];
+		for (int i = 0; i < this.agents.length; i++) {
+			if (this.partnered[i]) {
+				continue;
+			}
+
+			Agent agent = this.agents[i];
+			int candidates = 0;
+			for (int t = 0; t < Good.LEN_TYPE && candidates < MATCHING_CANDIDATES; t++) {
+				if ((agent.getBuyingMask() & (1 << t)) == 0) {
+					continue;
+				}
+				int c = t * Good.LEN_TYPE + agent.selling.type;
+				for (int k = this.compatibleStart[c]; k < this.compatibleStart[c + 1] && candidates < MATCHING_CANDIDATES; k++) {
+					int b = this.compatibleBuckets[k];
+					for (int j = this.bucketStart[b]; j < this.bucketStart[b + 1] && candidates < MATCHING_CANDIDATES; j++) {
+						double weight = this.communication.getWeight(agent, this.agents[this.bucketAgents[j]]);
+						if (!Double.isNaN(weight)) {
+							pairAgent1[numberOfPairs] = Math.min(i, this.bucketAgents[j]);
+							pairAgent2[numberOfPairs] = Math.max(i, this.bucketAgents[j]);
+							pairWeight[numberOfPairs++] = weight;
+							candidates++;
+						}
+					}
+				}
+			}
+		}
+		Metrics.CANDIDATES_SCANNED.add(numberOfPairs);
+
+		// Rank the distinct weights, so the weight and both ids fit in one long sort key
+		double [] weights = Arrays.copyOf(pairWeight, numberOfPairs);
+		Arrays.sort(weights);
+		int numberOfWeights = 0;
+		for (int p = 0; p < numberOfPairs; p++) {
+			if (numberOfWeights == 0 || weights[p] != weights[numberOfWeights - 1]) {
+				weights[numberOfWeights++] = weights[p];
+			}
+		}
+		int idBits = 32 - Integer.numberOfLeadingZeros(this.agents.length);
+		if (2 * idBits + 32 - Integer.numberOfLeadingZeros(numberOfWeights) > 63) {
+			throw new IllegalStateException("Too many agents or distinct weights for greedy matching.");
+		}
+
+		// Sort the pairs by weight and then by id
+		long [] order = new long [numberOfPairs];
+		for (int p = 0; p < numberOfPairs; p++) {
+			long rank = Arrays.binarySearch(weights, 0, numberOfWeights, pairWeight[p]);
+			order[p] = (rank << (2 * idBits)) | ((long) pairAgent1[p] << idBits) | pairAgent2[p];
+		}
+		Arrays.sort(order);
+
+		// Accept the closest pairs first
+		int [] partnerOf = new int [this.agents.length];
+		Arrays.fill(partnerOf, -1);
+		long idMask = (1L << idBits) - 1;
+		for (int p = 0; p < numberOfPairs; p++) {
+			int i = (int) ((order[p] >>> idBits) & idMask);
+			int j = (int) (order[p] & idMask);
+			if (!this.partnered[i] && !this.partnered[j]) {
+				this.partnered[i] = true;
+				this.partnered[j] = true;
+				partnerOf[i] = j;
+				partnerOf[j] = i;
+			}
+		}
+
+		// Agents whose candidates were all taken get the first compatible agent that is still free
+		for (int i = 0; i < this.agents.length; i++) {
+			if (!this.partnered[i]) {
+				int j = this.findFirstCompatible(this.agents[i]);
+				if (j >= 0) {
+					this.partnered[i] = true;
+					this.partnered[j] = true;
+					partnerOf[i] = j;
+					partnerOf[j] = i;
+				}
+			}
+		}
+
+		// Make all the trades, the agent with the lowest id being the source
+		for (int i = 0; i < this.agents.length; i++) {
+			if (partnerOf[i] > i) {
+				this.tradeNetwork.addEdge(this.agents[i], this.agents[partnerOf[i]]);
+			}
+		}
+	}
+
+	/**
+	 * Lets all the agents search for a partner at the same time. Every agent has a partner slot: an agent first claims its
+	 * own slot for the partner it wants and then tries to claim the slot of that partner with a compare-and-set. If it loses
+	 * the race it releases its own slot, backs off and searches again. Afterwards the pairs are added to the trade network
+	 * in order of id, so the trades themselves are made on the calling thread.
+	 */
+	private void matchConcurrently() {
+
+		// Every agent decides whether it cares about distance up front, so its random stream advances the same way whoever wins the races
+		final boolean [] considersDistance = new boolean [this.agents.length];
+		for (int i = 0; i < this.agents.length; i++) {
+			considersDistance[i] = !this.partnered[i] && this.agents[i].profile.shouldConsiderDistanceWhenPartnering();
+		}
+
+		final AtomicIntegerArray slots = new AtomicIntegerArray(this.agents.length);
+		for (int i = 0; i < this.agents.length; i++) {
+			slots.set(i, this.partnered[i] ? i : FREE);
+		}
+
+		IntStream.range(0, this.agents.length).parallel().forEach(i -> this.claimPartner(i, considersDistance[i], slots));
+
+		// Commit the pairs that claimed each other
+		for (int i = 0; i < this.agents.length; i++) {
+			int j = slots.get(i);
+			if (j > i && slots.get(j) == i) {
+				this.partnered[i] = true;
+				this.partnered[j] = true;
+				this.tradeNetwork.addEdge(this.agents[i], this.agents[j]);
+			}
+		}
+	}
+
+	private void claimPartner(int i, boolean considersDistance, AtomicIntegerArray slots) {
+
+		Agent agent = this.agents[i];
+		int scanned = 0;
+		for (int attempt = 0; attempt < MAX_CLAIM_ATTEMPTS && slots.get(i) == FREE; attempt++) {
+
+			// Look for the first (or closest) compatible agent that is still free, without touching the shared cursors
+			int j = -1;
+			double distanceToPartner = Double.MAX_VALUE;
+			for (int t = 0; t < Good.LEN_TYPE; t++) {
+				if ((agent.getBuyingMask() & (1 << t)) == 0) {
+					continue;
+				}
+				int c = t * Good.LEN_TYPE + agent.selling.type;
+				for (int k = this.compatibleStart[c]; k < this.compatibleStart[c + 1]; k++) {
+					int b = this.compatibleBuckets[k];
+					for (int n = this.bucketStart[b]; n < this.bucketStart[b + 1]; n++) {
+						int other = this.bucketAgents[n];
+						scanned++;
+						if (slots.get(other) != FREE) {
+							continue;
+						}
+						if (!considersDistance) {
+							if (j < 0 || other < j) {
+								j = other;
+							}
+							break;
+						}
+						double weight = this.communication.getWeight(agent, this.agents[other]);
+						if (weight < distanceToPartner || (weight == distanceToPartner && other < j)) {
+							distanceToPartner = weight;
+							j = other;
+						}
+					}
+				}
+			}
+
+			if (j < 0) {
+				break;
+			}
+
+			// Reserve this agent's own slot, unless somebody claimed it in the meantime
+			if (!slots.compareAndSet(i, FREE, j)) {
+				break;
+			}
+
+			// Claim the partner, or agree if the partner already reserved itself for this agent
+			if (slots.compareAndSet(j, FREE, i) || slots.get(j) == i) {
+				break;
+			}
+
+			// Lost the race: release the reservation and back off before searching again
+			slots.set(i, FREE);
+			for (int spin = 0; spin < attempt; spin++) {
+				Thread.yield();
+			}
+		}
+		
+		Metrics.CANDIDATES_SCANNED.add(scanned);
+	}
+
+	/**
+	 * Resolves the trades of this tick. The boosts are fetched one trade at a time, the actions of all the trades are
+	 * determined in parallel (every agent is in at most one trade), and the trades are then completed in order of the
+	 * lowest agent id, so the ratings and the training data don't depend on the number of threads.
+	 */
+	@SuppressWarnings("unchecked")
+	@ScheduledMethod(start = 2, interval = 2, priority = Market.RESOLUTION_PRIORITY)
+	public void resolveTrades() {
+
+		if (!Market.DEFERRED_RESOLUTION) {
+			return;
+		}
+		long start = Metrics.start();
+
+		// List the trades that still have to be made
+		final List<TradeEdge<Object>> trades = new ArrayList<TradeEdge<Object>>();
+		for (RepastEdge<Object> edge : this.tradeNetwork.getEdges()) {
+			if (edge instanceof TradeEdge && ((TradeEdge<Object>) edge).isTrade() && !((TradeEdge<Object>) edge).isCompleted()) {
+				trades.add((TradeEdge<Object>) edge);
+			}
+		}
+		trades.sort(Comparator.comparingInt(trade -> Math.min(((Agent) trade.getSource()).id, ((Agent) trade.getTarget()).id)));
+
+		for (TradeEdge<Object> trade : trades) {
+			trade.prepareTrade();
+		}
+
+		trades.parallelStream().forEach(TradeEdge::resolveTrade);
+
+		for (TradeEdge<Object> trade : trades) {
+			trade.completeTrade();
+		}
+		
+		Metrics.RESOLVE_TRADES.stop(start);
+	}
+
+	/**
+	 * Takes both agents out of the market.
+	 */
+	public void setPartners(Agent agent1, Agent agent2) {
+		this.partnered[agent1.id] = true;
+		this.partnered[agent2.id] = true;
+	}
+}
@@ -0,0 +1,309 @@
+package networkcues;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import repast.simphony.engine.schedule.ScheduleParameters;
+import repast.simphony.engine.schedule.ScheduledMethod;
+
+/**
+ * Runtime metrics of the simulation phases: latency histograms and call counts of the timed phases, and counters of the
+ * work done inside them. Metrics are switched on with -Dnetworkcues.metrics=true. ENABLED is a constant, so when
+ * metrics are off the JIT drops the calls to {@link #start()} and {@link Histogram#stop(long)} altogether.
+ *
+ * Every metric is registered as an MXBean in the networkcues domain. A scheduled Metrics instance records the trades of
+ * every tick and prints a snapshot of all the metrics every REPORT_INTERVAL trading ticks.
+ * The metrics belong to the process, so runs that share it (see {@link SweepExecutor}) add up in the same metrics.
+ */
+public class Metrics {
+
+	public static final boolean ENABLED = Boolean.getBoolean("networkcues.metrics");
+	public static final int REPORT_INTERVAL = 100;
+	public static final String DOMAIN = "networkcues";
+
+	private static final List<Histogram> HISTOGRAMS = new ArrayList<Histogram>();
+	private static final List<Counter> COUNTERS = new ArrayList<Counter>();
+
+	// Latencies of the phases, in nanoseconds
+	public static final Histogram PREPARE_FOR_TRADE = histogram("prepareForTrade");
+	public static final Histogram FIND_TRADING_PARTNER = histogram("findTradingPartner");
+	public static final Histogram MAKE_TRADE = histogram("makeTrade");
+	public static final Histogram RESOLVE_TRADES = histogram("resolveTrades");
+	public static final Histogram TRAIN = histogram("train");
+	public static final Histogram INTERROGATE = histogram("interrogate");
+	public static final Histogram GET_BOOSTS = histogram("getBoosts");
+	public static final Histogram BUILD = histogram("build");
+
+	// Work done per tick or per search
+	public static final Histogram TRADES_PER_TICK = histogram("tradesPerTick");
+	public static final Histogram BOOST_ITERATIONS = histogram("boostIterations");
+	public static final Counter TRADES = counter("trades");
+	public static final Counter CANDIDATES_SCANNED = counter("candidatesScanned");
+
+	static {
+		if (ENABLED) {
+			register();
+		}
+	}
+
+	private final boolean report;
+	private long lastTrades;
+	private long ticks;
+	private String lastSnapshot;
+
+	public Metrics() {
+		this(true);
+	}
+
+	/**
+	 * Metrics of a run that prints the snapshots, or only records the trades of its ticks.
+	 */
+	public Metrics(boolean report) {
+		this.report = report;
+		this.lastTrades = 0;
+		this.ticks = 0;
+		this.lastSnapshot = "";
+	}
+
+	/**
+	 * Start time of a timed phase, to be passed to {@link Histogram#stop(long)}.
+	 */
+	public static long start() {
+		return ENABLED ? System.nanoTime() : 0;
+	}
+
+	/**
+	 * Records the trades of the tick, and prints a snapshot every REPORT_INTERVAL ticks.
+	 */
+	@ScheduledMethod(start = 2, interval = 2, priority = ScheduleParameters.LAST_PRIORITY)
+	public void endOfTick() {
+		this.endOfTick(TRADES.getCount());
+	}
+
+	/**
+	 * Same as {@link #endOfTick()}, with the trades the run has made so far instead of the trades of the process.
+	 */
+	public void endOfTick(long trades) {
+		if (!ENABLED) {
+			return;
+		}
+
+		TRADES_PER_TICK.record(trades - this.lastTrades);
+		this.lastTrades = trades;
+
+		if (++this.ticks % REPORT_INTERVAL == 0 && this.report) {
+			this.lastSnapshot = snapshot();
+			System.out.print(this.lastSnapshot);
+		}
+	}
+
+	public String getLastSnapshot() {
+		return this.lastSnapshot;
+	}
+
+	/**
+	 * One line per metric with its current values.
+	 */
+	public static String snapshot() {
+		StringBuilder snapshot = new StringBuilder();
+		for (Histogram histogram : HISTOGRAMS) {
+			snapshot.append(String.format("%-20s count=%d mean=%.1f p50<=%d p90<=%d p99<=%d max=%d%n", histogram.getName(),
+					histogram.getCount(), histogram.getMean(), histogram.getPercentile50(), histogram.getPercentile90(),
+					histogram.getPercentile99(), histogram.getMax()));
+		}
+		for (Counter counter : COUNTERS) {
+			snapshot.append(String.format("%-20s count=%d%n", counter.getName(), counter.getCount()));
+		}
+		return snapshot.toString();
+	}
+
+	private static Histogram histogram(String name) {
+		Histogram histogram = new Histogram(name);
+		HISTOGRAMS.add(histogram);
+		return histogram;
+	}
+
+	private static Counter counter(String name) {
+		Counter counter = new Counter(name);
+		COUNTERS.add(counter);
+		return counter;
+	}
+
+	private static void register() {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			for (Histogram histogram : HISTOGRAMS) {
+				ObjectName name = new ObjectName(DOMAIN + ":type=Histogram,name=" + histogram.getName());
+				if (!server.isRegistered(name)) {
+					server.registerMBean(histogram, name);
+				}
+			}
+			for (Counter counter : COUNTERS) {
+				ObjectName name = new ObjectName(DOMAIN + ":type=Counter,name=" + counter.getName());
+				if (!server.isRegistered(name)) {
+					server.registerMBean(counter, name);
+				}
+			}
+		} catch (JMException e) {
+			System.out.println("Metrics not published over JMX: " + e.getMessage());
+		}
+	}
+
+	public static interface HistogramMXBean {
+		String getName();
+		long getCount();
+		long getSum();
+		double getMean();
+		long getMax();
+		long getPercentile50();
+		long getPercentile90();
+		long getPercentile99();
+	}
+
+	public static interface CounterMXBean {
+		String getName();
+		long getCount();
+	}
+
+	/**
+	 * Histogram with a bucket per power of two. Percentiles are reported as the upper bound of their bucket.
+	 */
+	public static class Histogram implements HistogramMXBean {
+
+		private final String name;
+		private final LongAdder count;
+		private final LongAdder sum;
+		private final LongAccumulator max;
+		private final LongAdder [] buckets;
+
+		private Histogram(String name) {
+			this.name = name;
+			this.count = new LongAdder();
+			this.sum = new LongAdder();
+			this.max = new LongAccumulator(Math::max, 0);
+			this.buckets = new LongAdder [64];
+			for (int b = 0; b < this.buckets.length; b++) {
+				this.buckets[b] = new LongAdder();
+			}
+		}
+
+		/**
+		 * Records the time since the given {@link Metrics#start()}.
+		 */
+		public void stop(long start) {
+			if (ENABLED) {
+				this.record(System.nanoTime() - start);
+			}
+		}
+
+		public void record(long value) {
+			if (ENABLED) {
+				value = Math.max(0, value);
+				this.count.increment();
+				this.sum.add(value);
+				this.max.accumulate(value);
+				this.buckets[64 - Long.numberOfLeadingZeros(value) - (value == 0 ? 0 : 1)].increment();
+			}
+		}
+
+		@Override
+		public String getName() {
+			return this.name;
+		}
+
+		@Override
+		public long getCount() {
+			return this.count.sum();
+		}
+
+		@Override
+		public long getSum() {
+			return this.sum.sum();
+		}
+
+		@Override
+		public double getMean() {
+			long count = this.getCount();
+			return count == 0 ? 0 : (double) this.getSum() / count;
+		}
+
+		@Override
+		public long getMax() {
+			return this.max.get();
+		}
+
+		@Override
+		public long getPercentile50() {
+			return this.getPercentile(0.5);
+		}
+
+		@Override
+		public long getPercentile90() {
+			return this.getPercentile(0.9);
+		}
+
+		@Override
+		public long getPercentile99() {
+			return this.getPercentile(0.99);
+		}
+
+		private long getPercentile(double fraction) {
+			long [] counts = new long [this.buckets.length];
+			long total = 0;
+			for (int b = 0; b < counts.length; b++) {
+				counts[b] = this.buckets[b].sum();
+				total += counts[b];
+			}
+
+			long rank = (long) Math.ceil(fraction * total);
+			long seen = 0;
+			for (int b = 0; b < counts.length; b++) {
+				seen += counts[b];
+				if (seen >= rank && counts[b] > 0) {
+					return Math.min(this.getMax(), b == 63 ? Long.MAX_VALUE : (2L << b) - 1);
+				}
+			}
+			return 0;
+		}
+	}
+
+	public static class Counter implements CounterMXBean {
+
+		private final String name;
+		private final LongAdder count;
+
+		private Counter(String name) {
+			this.name = name;
+			this.count = new LongAdder();
+		}
+
+		public void add(long n) {
+			if (ENABLED) {
+				this.count.add(n);
+			}
+		}
+
+		public void increment() {
+			if (ENABLED) {
+				this.count.increment();
+			}
+		}
+
+		@Override
+		public String getName() {
+			return this.name;
+		}
+
+		@Override
+		public long getCount() {
+			return this.count.sum();
+		}
+	}
+}
@@ -1,44 +1,98 @@
 package networkcues;
 
+import java.io.PrintStream;
 import java.util.AbstractMap.SimpleEntry;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
 import cern.jet.random.ChiSquare;
 import cern.jet.random.Uniform;
+import cern.jet.random.engine.MersenneTwister;
 import repast.simphony.context.Context;
 import repast.simphony.context.space.graph.NetworkFactory;
 import repast.simphony.context.space.graph.NetworkFactoryFinder;
 import repast.simphony.dataLoader.ContextBuilder;
+import repast.simphony.engine.environment.RunEnvironment;
 import repast.simphony.random.RandomHelper;
 import repast.simphony.space.continuous.NdPoint;
 import repast.simphony.space.graph.Network;
-import repast.simphony.space.graph.ShortestPath;
 import repast.simphony.util.collections.IndexedIterable;
 
 public class NetworkCuesBuilder implements ContextBuilder<Object> {
 	
-	public static final String NNET_PATH = "/Users/krishnamoniz/Projecten/eclipse-workspace/networkcues/output/neuralnet.snet";
+	// Relative to the working directory, unless set with -Dnetworkcues.nnet=path
+	public static final String NNET_PATH = System.getProperty("networkcues.nnet", "output/neuralnet" + NeuralNetWeights.EXTENSION);
 	public static final int COUNT_AGENT = 200;
 	public static final int COUNT_GROUPS = 10;
 	public static final int LEN_SPACE = 50;
 	public static final int LEN_FAMILY = 8;
 	public static final double LEN_NEIGHBORHOOD = 5;
+	public static final boolean BUILD_IN_PARALLEL = true;
+	public static final boolean SPARSE_COMMUNICATION = false;
+	public static final boolean PAIR_STATE_OFF_HEAP = false;
+	public static final boolean TRADE_JOURNAL = false;
+	public static final String TRADE_JOURNAL_PATH = "output/trades.journal";
+	
+	private int agentCount;
+	private boolean sparseCommunication;
+	private boolean pairStateOffHeap;
+	private AgentController.Mode mode;
+	private double cooperationPercentage;
+	private Long seed;
+	private String neuralNetPath;
+	private NeuralNetWeights pretrainedWeights;
+	private String tradeJournalPath;
+	private long tradeJournalRecords;
+	private PrintStream output;
+	private RandomStreams randomStreams;
+	private SpatialIndex spatialIndex;
+	private KinshipIndex kinshipIndex;
+	private CommunicationIndex communication;
+	private Market market;
+	private AgentController agentController;
+
+	public NetworkCuesBuilder() {
+		this.agentCount = COUNT_AGENT;
+		this.sparseCommunication = SPARSE_COMMUNICATION;
+		this.pairStateOffHeap = PAIR_STATE_OFF_HEAP;
+		this.mode = AgentController.LOGGING_MODE;
+		this.cooperationPercentage = Profile.COOPERATION_PERCENTAGE;
+		this.seed = null;
+		this.neuralNetPath = NNET_PATH;
+		this.pretrainedWeights = null;
+		this.tradeJournalPath = TRADE_JOURNAL ? TRADE_JOURNAL_PATH : null;
+		this.tradeJournalRecords = 0;
+		this.output = System.out;
+	}
 
 	@Override
 	public Context<Object> build(Context<Object> context) {
+		long start = Metrics.start();
 		context.setId("networkcues");
 		
+		// Derive the random streams of this run from the Repast seed (unless a seed was given)
+		this.randomStreams = new RandomStreams(this.seed != null ? this.seed : RandomHelper.getSeed());
+
 		// Create a controller
-		AgentController agentController = new AgentController(NetworkCuesBuilder.NNET_PATH);
+		AgentController agentController = new AgentController(this.neuralNetPath, this.randomStreams, this.pretrainedWeights);
+		if (this.mode != AgentController.LOGGING_MODE) {
+			agentController.setMode(this.mode);
+		}
+		agentController.setCooperationPercentage(this.cooperationPercentage);
+		agentController.setOutput(this.output);
+		this.agentController = agentController;
+		
+		// Journal every trade
+		TradeJournal journal = this.tradeJournalPath != null ? new TradeJournal(this.tradeJournalPath, this.tradeJournalRecords) : null;
+		agentController.setJournal(journal);
 
 		// Create a network factory
 		NetworkFactory networkFactory = NetworkFactoryFinder.createNetworkFactory(null);
 		
 		// Define a communication projection
 		Network <Object> commNetwork = networkFactory.createNetwork("communication network", context, false, new CommunicationEdgeCreator<Object>());
+		CommunicationIndex communication = new CommunicationIndex(commNetwork);
+		this.communication = communication;
 
 		// Define a trade network projection
 		Network <Object> tradeNetwork = networkFactory.createNetwork("trade network", context, true, new TradeEdgeCreator<Object>());
@@ -46,124 +100,318 @@ public class NetworkCuesBuilder implements ContextBuilder<Object> {
 		// Define a kinship network projection
 		Network <Object> kinNetwork = networkFactory.createNetwork("kinship network", context, false);
 		
+		// Create a market to match up the trading partners
+		Market market = new Market(tradeNetwork, communication);
+		this.market = market;
+		
 		// Create a set of agents
-		for (int i = 0; i < COUNT_AGENT; i++) {
-			NdPoint location = new NdPoint(RandomHelper.nextDouble() * LEN_SPACE, RandomHelper.nextDouble() * LEN_SPACE);
-			Agent x = new Agent(i, location, commNetwork, tradeNetwork, agentController);
+		for (int i = 0; i < this.agentCount; i++) {
+			RandomStream random = this.randomStreams.get(RandomStreams.Phase.LOCATION, i);
+			NdPoint location = new NdPoint(random.nextDouble() * LEN_SPACE, random.nextDouble() * LEN_SPACE);
+			Agent x = new Agent(i, location, this.randomStreams, communication, tradeNetwork, market, agentController, this.cooperationPercentage);
 			context.add(x);
 		}
 
 		// Populate the communication network
-		this.buildCommunicationNetwork(context, commNetwork, kinNetwork);
+		this.buildCommunicationNetwork(context, communication, kinNetwork);
 		
+		// Open the market every trading tick and train the controller at the end of it
+		market.setAgents(context.getObjects(Agent.class));
+		if (RunEnvironment.getInstance() != null && RunEnvironment.getInstance().getCurrentSchedule() != null) {
+			RunEnvironment.getInstance().getCurrentSchedule().schedule(market);
+			RunEnvironment.getInstance().getCurrentSchedule().schedule(agentController);
+			if (journal != null) {
+				RunEnvironment.getInstance().getCurrentSchedule().schedule(journal);
+			}
+			if (Metrics.ENABLED) {
+				RunEnvironment.getInstance().getCurrentSchedule().schedule(new Metrics());
+			}
+		}
+		
+		Metrics.BUILD.stop(start);
 		return context;
 	}
 
-	private void buildCommunicationNetwork(Context<Object> context, Network<Object> commNetwork, Network <Object> kinNetwork) {
-		
-
-		// Build a kinship path
-		Network<Object> kinshipNetwork = buildKinShipNetwork(context, kinNetwork); 
-		ShortestPath <Object> paths = new ShortestPath <Object>(kinshipNetwork); 
+	void buildCommunicationNetwork(Context<Object> context, CommunicationIndex communication, Network <Object> kinNetwork) {
 
 		// List all the agents from the context
 		IndexedIterable<Object> collection = context.getObjects(Agent.class);
+		int numberOfAgents = collection.size();
+
+		// Build the kinship network and determine who is within LEN_FAMILY hops of whom
+		Network<Object> kinshipNetwork = buildKinShipNetwork(context, kinNetwork); 
+		this.kinshipIndex = new KinshipIndex(collection, kinshipNetwork);
+
+		// Index the agent locations, so that the neighborhood only has to be searched in the adjacent cells
+		this.spatialIndex = new SpatialIndex(collection);
+		for (int i = 0; i < numberOfAgents; i++) {
+			Agent agent = (Agent) collection.get(i);
+			agent.neighborhoodSize = this.spatialIndex.countNeighbors(i, NetworkCuesBuilder.LEN_NEIGHBORHOOD);
+		}
+		communication.setIndices(this.spatialIndex, this.kinshipIndex, this.sparseCommunication);
+		if (this.pairStateOffHeap) {
+			communication.setPairStateTable(new PairStateTable(numberOfAgents));
+		}
 
 		// Some debug output
-		HashMap<Double, Integer> counts1 = new HashMap <Double, Integer>();
-		HashMap<Double, Integer> counts2 = new HashMap <Double, Integer>();
-		HashMap<Double, Integer> counts3 = new HashMap <Double, Integer>();
+		PairAttributeBlock.Histogram histogram = new PairAttributeBlock.Histogram();
+
+		if (communication.isSparse()) {
+			this.buildSparseCommunicationNetwork(collection, communication, histogram);
+		} else {
+			this.buildCompleteCommunicationNetwork(collection, communication.getNetwork(), communication.getPairStateTable(), histogram);
+		}
+
+		// Count the neighborhood sizes
+		int maxNeighborhoodSize = 0;
+		for (int i = 0; i < numberOfAgents; i++) {
+			maxNeighborhoodSize = Math.max(maxNeighborhoodSize, ((Agent) collection.get(i)).neighborhoodSize);
+		}
+		int [] neighborhoodCounts = new int [maxNeighborhoodSize + 1];
+		for (int i = 0; i < numberOfAgents; i++) {
+			neighborhoodCounts[((Agent) collection.get(i)).neighborhoodSize]++;
+		}
 		
-		for (Object current : collection) {
-			
-			// Get the current agent
-			Agent currentAgent = (Agent) current;
+	    this.output.println("----------kinship------------");
+	    int [] kinshipCounts = histogram.getKinshipCounts();
+	    for (int i = 0; i < kinshipCounts.length; i++) {
+	    		if (kinshipCounts[i] > 0) {
+	    			this.output.println((i < kinshipCounts.length - 1 ? (double) i : Double.POSITIVE_INFINITY) + " = " + kinshipCounts[i]);
+	    		}
+	    }
+	    this.output.println(communication.isSparse() ? "----------distance (neighbors)------------" : "----------distance------------");
+	    int [] distanceCounts = histogram.getDistanceCounts();
+	    for (int i = 0; i < distanceCounts.length; i++) {
+	    		if (distanceCounts[i] > 0) {
+	    			this.output.println((i - PairAttributeBlock.DISTANCE_BINS / 2) / 4d + " = " + distanceCounts[i]);
+	    		}
+	    }
+	    this.output.println("-----------neighborhood-----------");
+	    for (int i = 0; i < neighborhoodCounts.length; i++) {
+	    		if (neighborhoodCounts[i] > 0) {
+	    			this.output.println((double) i + " = " + neighborhoodCounts[i]);
+	    		}
+	    }
+
+	}
+
+	private void buildCompleteCommunicationNetwork(IndexedIterable<Object> collection, Network<Object> commNetwork, PairStateTable pairState, PairAttributeBlock.Histogram histogram) {
+		
+		int numberOfAgents = collection.size();
 
-			for (Object other : collection) {
-				Agent otherAgent = (Agent) other;
+		// Collect the group of every agent, so the pair attributes can be computed without touching the agents
+		int [] groupIDs = new int [numberOfAgents];
+		for (int i = 0; i < numberOfAgents; i++) {
+			groupIDs[i] = ((Agent) collection.get(i)).profile.getGroupID();
+		}
+
+		ForkJoinPool pool = NetworkCuesBuilder.BUILD_IN_PARALLEL ? ForkJoinPool.commonPool() : null;
+		
+		// Walk through the upper triangle of the agent pairs one block of rows at a time
+		for (int rowFrom = 0; rowFrom < numberOfAgents - 1; ) {
+			int rowTo = PairAttributeBlock.getBlockEnd(numberOfAgents, rowFrom);
+			
+			// Compute the edge attributes (in parallel, if enabled)
+			PairAttributeBlock block = PairAttributeBlock.compute(rowFrom, rowTo, this.spatialIndex, this.kinshipIndex, groupIDs, pool, histogram);
+			
+			// Create an edge between the current agent and every agent after it (the network itself is not thread safe)
+			for (int i = rowFrom; i < rowTo; i++) {
+				Agent currentAgent = (Agent) collection.get(i);
 				
-				// Create an edge between the current and agent and every other agent
-				if (currentAgent != otherAgent && commNetwork.getEdge(otherAgent, currentAgent) == null) {
+				for (int j = i + 1; j < numberOfAgents; j++) {
+					int k = block.indexOf(i, j);
 					
 					// Create the edge
-					CommunicationEdge<Object> edge = (CommunicationEdge<Object>) commNetwork.addEdge(currentAgent, otherAgent);
+					CommunicationEdge<Object> edge = (CommunicationEdge<Object>) commNetwork.addEdge(currentAgent, collection.get(j));
+					if (pairState != null) {
+						edge.storeIn(pairState);
+					}
 					
-					// Define the kinship
-					edge.setKinship(paths.getPathLength(currentAgent, otherAgent));
+					// Define the kinship, neighborhood distance and group relationship
+					edge.setKinship(block.kinship[k]);
+					edge.setNormalizedDistance(block.normalizedDistance[k]);
+					edge.setSameGroup(block.sameGroup[k]);
+				}
+			}
+			
+			rowFrom = rowTo;
+		}
+	}
+
+	private void buildSparseCommunicationNetwork(IndexedIterable<Object> collection, CommunicationIndex communication, PairAttributeBlock.Histogram histogram) {
+		
+		int numberOfAgents = collection.size();
+		
+		for (int i = 0; i < numberOfAgents; i++) {
+			
+			// Only neighbors and kin get an edge (pairs that trade get one once they do), the rest is derived when needed
+			int [] neighbors = this.spatialIndex.getNeighborPositions(i, NetworkCuesBuilder.LEN_NEIGHBORHOOD);
+			int [] kin = this.kinshipIndex.getKinPositions(i);
+			
+			// Walk through both sorted lists at the same time, so every edge is created once and in order
+			int n = 0;
+			int k = 0;
+			int farKin = numberOfAgents - 1 - i;
+			while (n < neighbors.length || k < kin.length) {
+				int j;
+				boolean neighbor;
+				if (k == kin.length || (n < neighbors.length && neighbors[n] < kin[k])) {
+					j = neighbors[n++];
+					neighbor = true;
+				} else {
+					j = kin[k++];
 					
-					// Determine the neighborhood distance and neighborhood size
-					double distance = currentAgent.getDistanceTo(otherAgent);
-					if (distance < NetworkCuesBuilder.LEN_NEIGHBORHOOD) {
-						edge.setNormalizedDistance(1 - (distance / NetworkCuesBuilder.LEN_NEIGHBORHOOD));
-						currentAgent.neighborhoodSize++;
-						otherAgent.neighborhoodSize++;
-					} else {
-						edge.setNormalizedDistance((NetworkCuesBuilder.LEN_NEIGHBORHOOD - distance) / (NetworkCuesBuilder.LEN_SPACE - NetworkCuesBuilder.LEN_NEIGHBORHOOD));
+					// Neighbors that are also kin only get one edge
+					neighbor = n < neighbors.length && neighbors[n] == j;
+					if (neighbor) {
+						n++;
 					}
+				}
+				
+				if (j > i) {
+					CommunicationEdge<Object> edge = communication.createEdge((Agent) collection.get(i), (Agent) collection.get(j));
 					
-					// Determine the group relationship
-					edge.setSameGroup((currentAgent.profile.getGroupID() == otherAgent.profile.getGroupID()));
-					
-					// Some debugging data
-					double possibleKey = edge.getKinship();
-					if (counts1.containsKey(possibleKey)) {
-						counts1.put(possibleKey, counts1.get(possibleKey) + 1);
-					} else {
-						counts1.put(possibleKey, 1);
+					// Only the distances of neighbors are known without looking at every pair
+					if (neighbor) {
+						histogram.distance[PairAttributeBlock.Histogram.getDistanceBin(edge.getNormalizedDistance())]++;
 					}
-
-					possibleKey = (double) (Math.round(edge.getNormalizedDistance() * 4)) / 4d;
-					if (counts2.containsKey(possibleKey)) {
-						counts2.put(possibleKey, counts2.get(possibleKey) + 1);
-					} else {
-						counts2.put(possibleKey, 1);
+					if (edge.getKinship() < NetworkCuesBuilder.LEN_FAMILY) {
+						histogram.kinship[(int) edge.getKinship()]++;
+						farKin--;
 					}
 				}
 			}
+			histogram.kinship[histogram.kinship.length - 1] += farKin;
 		}
-		
-		for (Object current : collection) {
-			// Get the current agent
-			Agent countAgent = (Agent) current;
-			double neighborKey = (double) countAgent.neighborhoodSize;
-			if (counts3.containsKey(neighborKey)) {
-				counts3.put(neighborKey, counts3.get(neighborKey) + 1);
-			} else {
-				counts3.put(neighborKey, 1);
-			}
-		}
-		
-	    System.out.println("----------kinship------------");
-	    Iterator<Map.Entry<Double, Integer> > it1 = counts1.entrySet().iterator();
-	    while (it1.hasNext()) {
-	        Map.Entry<Double, Integer> pair = (Map.Entry<Double, Integer>)it1.next();
-	        System.out.println(pair.getKey() + " = " + pair.getValue());
-	        it1.remove(); // avoids a ConcurrentModificationException
-	    }
-	    System.out.println("----------distance------------");
-	    Iterator<Map.Entry<Double, Integer> > it2 = counts2.entrySet().iterator();
-	    while (it2.hasNext()) {
-	        Map.Entry<Double, Integer> pair = (Map.Entry<Double, Integer>)it2.next();
-	        System.out.println(pair.getKey() + " = " + pair.getValue());
-	        it2.remove(); // avoids a ConcurrentModificationException
-	    }
-	    System.out.println("-----------neighborhood-----------");
-	    Iterator<Map.Entry<Double, Integer> > it3 = counts3.entrySet().iterator();
-	    while (it3.hasNext()) {
-	        Map.Entry<Double, Integer> pair = (Map.Entry<Double, Integer>)it3.next();
-	        System.out.println(pair.getKey() + " = " + pair.getValue());
-	        it3.remove(); // avoids a ConcurrentModificationException
-	    }
+	}
+	
+	/**
+	 * Number of agents to build, instead of COUNT_AGENT.
+	 */
+	void setAgentCount(int agentCount) {
+		this.agentCount = agentCount;
+	}
+
+	void setSparseCommunication(boolean sparseCommunication) {
+		this.sparseCommunication = sparseCommunication;
+	}
+
+	/**
+	 * Whether the trade history is kept in a PairStateTable, instead of PAIR_STATE_OFF_HEAP.
+	 */
+	void setPairStateOffHeap(boolean pairStateOffHeap) {
+		this.pairStateOffHeap = pairStateOffHeap;
+	}
+
+	/**
+	 * Mode of the controller, instead of AgentController.LOGGING_MODE.
+	 */
+	void setMode(AgentController.Mode mode) {
+		this.mode = mode;
+	}
+
+	/**
+	 * Probability that an agent cooperates, instead of Profile.COOPERATION_PERCENTAGE. Negative gives every strategy the same probability.
+	 */
+	void setCooperationPercentage(double cooperationPercentage) {
+		this.cooperationPercentage = cooperationPercentage;
+	}
+
+	/**
+	 * Seed of the random streams, instead of the Repast seed.
+	 */
+	void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * File the controller loads the network from and saves it to, instead of NNET_PATH.
+	 */
+	void setNeuralNetPath(String neuralNetPath) {
+		this.neuralNetPath = neuralNetPath;
+	}
+
+	/**
+	 * Weights the controller starts from, instead of loading the network from the file.
+	 */
+	void setPretrainedWeights(NeuralNetWeights pretrainedWeights) {
+		this.pretrainedWeights = pretrainedWeights;
+	}
+
+	/**
+	 * File to journal the trades to, or null for no journal.
+	 */
+	void setTradeJournalPath(String tradeJournalPath) {
+		this.tradeJournalPath = tradeJournalPath;
+	}
+
+	/**
+	 * Number of records the journal already has and continues after, instead of starting it empty.
+	 */
+	void setTradeJournalRecords(long tradeJournalRecords) {
+		this.tradeJournalRecords = tradeJournalRecords;
+	}
+
+	/**
+	 * Where the build and the controller print their statistics, instead of System.out.
+	 */
+	void setOutput(PrintStream output) {
+		this.output = output;
+	}
+
+	public int getAgentCount() {
+		return this.agentCount;
+	}
+
+	public boolean isSparseCommunication() {
+		return this.sparseCommunication;
+	}
+
+	public AgentController.Mode getMode() {
+		return this.mode;
+	}
+
+	public double getCooperationPercentage() {
+		return this.cooperationPercentage;
+	}
+
+	public CommunicationIndex getCommunication() {
+		return this.communication;
+	}
+
+	public Market getMarket() {
+		return this.market;
+	}
+
+	public AgentController getAgentController() {
+		return this.agentController;
+	}
+
+	public SpatialIndex getSpatialIndex() {
+		return this.spatialIndex;
+	}
+
+	public RandomStreams getRandomStreams() {
+		return this.randomStreams;
+	}
+
+	public KinshipIndex getKinshipIndex() {
+		return this.kinshipIndex;
+	}
 
+	public PrintStream getOutput() {
+		return this.output;
 	}
 	
-	private Network<Object> buildKinShipNetwork (Context<Object> context, Network <Object> kinNetwork) {
+	Network<Object> buildKinShipNetwork (Context<Object> context, Network <Object> kinNetwork) {
 		
 		int minFamilySize = NetworkCuesBuilder.LEN_FAMILY * 3;
 		int sumConnections =  0;
-		Uniform randomUniform = RandomHelper.createUniform();
-		ChiSquare randomStart = RandomHelper.createChiSquare(NetworkCuesBuilder.LEN_FAMILY / 2);
-		ChiSquare randomMaxim = RandomHelper.createChiSquare(NetworkCuesBuilder.LEN_FAMILY);
+		RandomStream random = this.randomStreams.get(RandomStreams.Phase.KINSHIP, 0);
+		MersenneTwister randomEngine = new MersenneTwister(random.nextInt());
+		Uniform randomUniform = new Uniform(randomEngine);
+		ChiSquare randomStart = new ChiSquare(NetworkCuesBuilder.LEN_FAMILY / 2, randomEngine);
+		ChiSquare randomMaxim = new ChiSquare(NetworkCuesBuilder.LEN_FAMILY, randomEngine);
 
 		// Create a kinship network
 		Network <Object> kinshipNetwork = kinNetwork;
@@ -183,9 +431,9 @@ public class NetworkCuesBuilder implements ContextBuilder<Object> {
 		for (int i =0; i < numberOfAgents; i++) {
 			
 			// Create a new family
-			boolean startNewFamily = RandomHelper.nextDouble() > 0.75;
+			boolean startNewFamily = random.nextDouble() > 0.75;
 			if (i < minFamilySize || (startNewFamily && i + minFamilySize < numberOfAgents)) {
-				System.out.println("Create a new network");
+				this.output.println("Create a new network");
 				
 				// Create a ring network
 				kinshipNetwork.addEdge(collection.get(i), collection.get(i + minFamilySize - 1));
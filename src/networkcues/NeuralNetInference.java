@@ -0,0 +1,186 @@
+package networkcues;
+
+import org.joone.engine.FullSynapse;
+import org.joone.engine.Layer;
+import org.joone.engine.LinearLayer;
+import org.joone.engine.Matrix;
+import org.joone.net.NeuralNet;
+
+/**
+ * Forward pass of the 20-24-8-1 supervisor network without JOONE.
+ * The weights are copied out of the L.input, L.hidden1, L.hidden2 and L.output layers into flat arrays, one row per
+ * unit, so a prediction is a handful of tight loops over preallocated buffers. The copy doesn't follow later training,
+ * and the scratch buffers make an instance unsafe to share between threads.
+ */
+public class NeuralNetInference {
+
+	public static final int INPUTS = 20;
+	public static final int HIDDEN1 = 24;
+	public static final int HIDDEN2 = 8;
+
+	private final double inputBeta;
+
+	// The weights of unit h are weights[h * inputs] up to weights[(h + 1) * inputs]
+	private final double [] weights1;
+	private final double [] bias1;
+	private final double [] weights2;
+	private final double [] bias2;
+	private final double [] weights3;
+	private final double bias3;
+
+	private final double [] hidden1;
+	private final double [] hidden2;
+	private final double [] partialSums;
+
+	private NeuralNetInference(double inputBeta, double [] weights1, double [] bias1, double [] weights2, double [] bias2, double [] weights3, double bias3) {
+		this.inputBeta = inputBeta;
+		this.weights1 = weights1;
+		this.bias1 = bias1;
+		this.weights2 = weights2;
+		this.bias2 = bias2;
+		this.weights3 = weights3;
+		this.bias3 = bias3;
+
+		this.hidden1 = new double [HIDDEN1];
+		this.hidden2 = new double [HIDDEN2];
+		this.partialSums = new double [HIDDEN1];
+	}
+
+	/**
+	 * Copies the weights of the network. Throws an IllegalArgumentException if the network doesn't have the expected layers.
+	 */
+	public static NeuralNetInference of(NeuralNet nnet) {
+
+		LinearLayer input = (LinearLayer) getLayer(nnet, "L.input");
+		Layer hidden1 = getLayer(nnet, "L.hidden1");
+		Layer hidden2 = getLayer(nnet, "L.hidden2");
+		Layer output = getLayer(nnet, "L.output");
+
+		return new NeuralNetInference(
+				input.getBeta(),
+				getWeights(hidden1, INPUTS, HIDDEN1), getBias(hidden1, HIDDEN1),
+				getWeights(hidden2, HIDDEN1, HIDDEN2), getBias(hidden2, HIDDEN2),
+				getWeights(output, HIDDEN2, 1), getBias(output, 1)[0]);
+	}
+
+	/**
+	 * Copy of this engine with its own scratch buffers, for use on another thread.
+	 */
+	public NeuralNetInference copy() {
+		return new NeuralNetInference(this.inputBeta, this.weights1, this.bias1, this.weights2, this.bias2, this.weights3, this.bias3);
+	}
+
+	/**
+	 * Output of the network for the 20 inputs.
+	 */
+	public double predict(double [] input) {
+
+		// Input layer (linear) to the first hidden layer
+		for (int h = 0, w = 0; h < HIDDEN1; h++) {
+			double sum = 0;
+			for (int i = 0; i < INPUTS; i++, w++) {
+				sum += input[i] * this.weights1[w];
+			}
+			this.hidden1[h] = sigmoid(this.inputBeta * sum + this.bias1[h]);
+		}
+
+		return this.predictFromHidden1();
+	}
+
+	/**
+	 * Outputs of the network for a batch of inputs that only differ in their last columns. The candidates hold the
+	 * values for the columns from firstColumn on. The shared columns are multiplied in once for the whole batch.
+	 */
+	public void predictAll(double [] input, int firstColumn, double [][] candidates, double [] outputs) {
+
+		// Sum the shared columns for every unit of the first hidden layer
+		for (int h = 0, w = 0; h < HIDDEN1; h++, w += INPUTS) {
+			double sum = 0;
+			for (int i = 0; i < firstColumn; i++) {
+				sum += input[i] * this.weights1[w + i];
+			}
+			this.partialSums[h] = sum;
+		}
+
+		// Add the columns of each candidate and finish the forward pass
+		for (int c = 0; c < candidates.length; c++) {
+			double [] candidate = candidates[c];
+			for (int h = 0, w = firstColumn; h < HIDDEN1; h++, w += INPUTS) {
+				double sum = this.partialSums[h];
+				for (int i = 0; i < candidate.length; i++) {
+					sum += candidate[i] * this.weights1[w + i];
+				}
+				this.hidden1[h] = sigmoid(this.inputBeta * sum + this.bias1[h]);
+			}
+			outputs[c] = this.predictFromHidden1();
+		}
+	}
+
+	/**
+	 * Output of the network given the activations already in the first hidden layer.
+	 */
+	private double predictFromHidden1() {
+
+		for (int h = 0, w = 0; h < HIDDEN2; h++) {
+			double sum = this.bias2[h];
+			for (int i = 0; i < HIDDEN1; i++, w++) {
+				sum += this.hidden1[i] * this.weights2[w];
+			}
+			this.hidden2[h] = sigmoid(sum);
+		}
+
+		double sum = this.bias3;
+		for (int i = 0; i < HIDDEN2; i++) {
+			sum += this.hidden2[i] * this.weights3[i];
+		}
+		return sigmoid(sum);
+	}
+
+	private static double sigmoid(double x) {
+		return 1 / (1 + Math.exp(-x));
+	}
+
+	private static Layer getLayer(NeuralNet nnet, String name) {
+		Layer layer = nnet.getLayer(name);
+		if (layer == null) {
+			throw new IllegalArgumentException("The neural network has no layer " + name + ".");
+		}
+		return layer;
+	}
+
+	/**
+	 * Weights of the full synapse into the layer, transposed so that the weights of every unit are contiguous.
+	 */
+	private static double [] getWeights(Layer layer, int inputs, int outputs) {
+		for (Object o : layer.getAllInputs()) {
+			if (o instanceof FullSynapse) {
+				Matrix matrix = ((FullSynapse) o).getWeights();
+				if (matrix.value.length != inputs || matrix.value[0].length != outputs) {
+					break;
+				}
+
+				double [] weights = new double [inputs * outputs];
+				for (int h = 0; h < outputs; h++) {
+					for (int i = 0; i < inputs; i++) {
+						weights[h * inputs + i] = matrix.value[i][h];
+					}
+				}
+				return weights;
+			}
+		}
+		throw new IllegalArgumentException("The layer " + layer.getLayerName() + " has no " + inputs + "x" + outputs + " input synapse.");
+	}
+
+	private static double [] getBias(Layer layer, int rows) {
+		Matrix matrix = layer.getBias();
+		if (matrix == null || matrix.value.length != rows) {
+			throw new IllegalArgumentException("The layer " + layer.getLayerName() + " has no bias for " + rows + " rows.");
+		}
+
+		double [] bias = new double [rows];
+		for (int h = 0; h < rows; h++) {
+			bias[h] = matrix.value[h][0];
+		}
+		return bias;
+	}
+}
@@ -0,0 +1,337 @@
+package networkcues;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.joone.engine.FullSynapse;
+import org.joone.engine.Layer;
+import org.joone.engine.LinearLayer;
+import org.joone.engine.Matrix;
+import org.joone.net.NeuralNet;
+
+/**
+ * The weights of the supervisor network, and the .ncw file they are saved in instead of a serialized NeuralNet.
+ *
+ * A .ncw file has a header of ints: MAGIC, VERSION, the number of layers and the number of units in every layer,
+ * padded to a multiple of 8 bytes. The header is followed by doubles: the beta of the input layer, and then for every
+ * other layer its biases, the momentum deltas of its biases, the weights of the synapse from the previous layer (by
+ * input unit, then output unit) and the deltas of those weights. The file is mapped into memory to load it.
+ *
+ * Usage: NeuralNetWeights from to, to convert between .snet and .ncw files.
+ */
+public class NeuralNetWeights {
+
+	public static final String EXTENSION = ".ncw";
+	public static final int MAGIC = 0x4E434E57;
+	public static final int VERSION = 1;
+
+	// Extension of a serialized JOONE network, imported when its .ncw file doesn't exist yet
+	public static final String SERIALIZED_EXTENSION = ".snet";
+
+	// Largest layer a file may declare, to reject corrupt headers before allocating
+	private static final int MAX_LAYER_SIZE = 1 << 12;
+
+	// Layers of the network, from input to output
+	public static final String [] LAYER_NAMES = { "L.input", "L.hidden1", "L.hidden2", "L.output" };
+
+	// Writes one network at a time, in the order they were saved
+	private static final ExecutorService WRITER = Executors.newSingleThreadExecutor(r -> {
+		Thread thread = new Thread(r, "neural network writer");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private final int [] layerSizes;
+	private final double inputBeta;
+
+	// Per layer, the first layer has none
+	private final double [][] biases;
+	private final double [][] biasDeltas;
+	private final double [][] weights;
+	private final double [][] weightDeltas;
+
+	private NeuralNetWeights(int [] layerSizes, double inputBeta) {
+		this.layerSizes = layerSizes;
+		this.inputBeta = inputBeta;
+		this.biases = new double [layerSizes.length][];
+		this.biasDeltas = new double [layerSizes.length][];
+		this.weights = new double [layerSizes.length][];
+		this.weightDeltas = new double [layerSizes.length][];
+		for (int l = 1; l < layerSizes.length; l++) {
+			this.biases[l] = new double [layerSizes[l]];
+			this.biasDeltas[l] = new double [layerSizes[l]];
+			this.weights[l] = new double [layerSizes[l - 1] * layerSizes[l]];
+			this.weightDeltas[l] = new double [layerSizes[l - 1] * layerSizes[l]];
+		}
+	}
+
+	/**
+	 * Copies the weights out of the network. Throws an IllegalArgumentException if the network doesn't have the expected
+	 * layers.
+	 */
+	public static NeuralNetWeights of(NeuralNet nnet) {
+		Layer [] layers = getLayers(nnet);
+		int [] layerSizes = new int [layers.length];
+		for (int l = 0; l < layers.length; l++) {
+			layerSizes[l] = layers[l].getRows();
+		}
+
+		NeuralNetWeights weights = new NeuralNetWeights(layerSizes, ((LinearLayer) layers[0]).getBeta());
+		for (int l = 1; l < layers.length; l++) {
+			Matrix bias = getBias(layers[l], layerSizes[l]);
+			for (int h = 0; h < layerSizes[l]; h++) {
+				weights.biases[l][h] = bias.value[h][0];
+				weights.biasDeltas[l][h] = bias.delta != null ? bias.delta[h][0] : 0;
+			}
+
+			Matrix synapse = getWeights(layers[l], layerSizes[l - 1], layerSizes[l]);
+			for (int i = 0, w = 0; i < layerSizes[l - 1]; i++) {
+				for (int h = 0; h < layerSizes[l]; h++, w++) {
+					weights.weights[l][w] = synapse.value[i][h];
+					weights.weightDeltas[l][w] = synapse.delta != null ? synapse.delta[i][h] : 0;
+				}
+			}
+		}
+		return weights;
+	}
+
+	/**
+	 * Copies the weights into a network with the same layers.
+	 */
+	public void applyTo(NeuralNet nnet) {
+		Layer [] layers = getLayers(nnet);
+		for (int l = 0; l < layers.length; l++) {
+			if (layers[l].getRows() != this.layerSizes[l]) {
+				throw new IllegalArgumentException("The layer " + LAYER_NAMES[l] + " has " + layers[l].getRows() + " units instead of " + this.layerSizes[l] + ".");
+			}
+		}
+
+		((LinearLayer) layers[0]).setBeta(this.inputBeta);
+		for (int l = 1; l < layers.length; l++) {
+			Matrix bias = getBias(layers[l], this.layerSizes[l]);
+			if (bias.delta == null) {
+				bias.delta = new double [this.layerSizes[l]][1];
+			}
+			for (int h = 0; h < this.layerSizes[l]; h++) {
+				bias.value[h][0] = this.biases[l][h];
+				bias.delta[h][0] = this.biasDeltas[l][h];
+			}
+
+			Matrix synapse = getWeights(layers[l], this.layerSizes[l - 1], this.layerSizes[l]);
+			if (synapse.delta == null) {
+				synapse.delta = new double [this.layerSizes[l - 1]][this.layerSizes[l]];
+			}
+			for (int i = 0, w = 0; i < this.layerSizes[l - 1]; i++) {
+				for (int h = 0; h < this.layerSizes[l]; h++, w++) {
+					synapse.value[i][h] = this.weights[l][w];
+					synapse.delta[i][h] = this.weightDeltas[l][w];
+				}
+			}
+		}
+	}
+
+	public static boolean isWeightFile(String fileName) {
+		return fileName.endsWith(EXTENSION);
+	}
+
+	/**
+	 * Loads the weights from the memory mapped file.
+	 */
+	public static NeuralNetWeights read(String fileName) throws IOException {
+		try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+			if (buffer.remaining() < 12 || buffer.getInt() != MAGIC) {
+				throw new IOException(fileName + " isn't a neural network weight file.");
+			}
+			int version = buffer.getInt();
+			if (version != VERSION) {
+				throw new IOException(fileName + " has version " + version + " instead of " + VERSION + ".");
+			}
+			int numberOfLayers = buffer.getInt();
+			if (numberOfLayers != LAYER_NAMES.length) {
+				throw new IOException(fileName + " has " + numberOfLayers + " layers instead of " + LAYER_NAMES.length + ".");
+			}
+
+			int [] layerSizes = new int [numberOfLayers];
+			for (int l = 0; l < numberOfLayers; l++) {
+				layerSizes[l] = buffer.getInt();
+				if (layerSizes[l] <= 0 || layerSizes[l] > MAX_LAYER_SIZE) {
+					throw new IOException(fileName + " has " + layerSizes[l] + " units in layer " + LAYER_NAMES[l] + ".");
+				}
+			}
+			if (channel.size() != size(layerSizes)) {
+				throw new IOException(fileName + " has " + channel.size() + " bytes instead of " + size(layerSizes) + ".");
+			}
+			buffer.position(headerSize(numberOfLayers));
+
+			// Copy the doubles in bulk
+			DoubleBuffer doubles = buffer.asDoubleBuffer();
+			NeuralNetWeights weights = new NeuralNetWeights(layerSizes, doubles.get());
+			for (int l = 1; l < numberOfLayers; l++) {
+				doubles.get(weights.biases[l]);
+				doubles.get(weights.biasDeltas[l]);
+				doubles.get(weights.weights[l]);
+				doubles.get(weights.weightDeltas[l]);
+			}
+			return weights;
+		} catch (BufferUnderflowException e) {
+			throw new IOException(fileName + " ends before the weights do.");
+		}
+	}
+
+	/**
+	 * Writes the weights to a temporary file that then replaces the file.
+	 */
+	public void write(String fileName) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(size(this.layerSizes));
+		buffer.putInt(MAGIC);
+		buffer.putInt(VERSION);
+		buffer.putInt(this.layerSizes.length);
+		for (int size : this.layerSizes) {
+			buffer.putInt(size);
+		}
+		buffer.position(headerSize(this.layerSizes.length));
+
+		DoubleBuffer doubles = buffer.asDoubleBuffer();
+		doubles.put(this.inputBeta);
+		for (int l = 1; l < this.layerSizes.length; l++) {
+			doubles.put(this.biases[l]);
+			doubles.put(this.biasDeltas[l]);
+			doubles.put(this.weights[l]);
+			doubles.put(this.weightDeltas[l]);
+		}
+
+		replace(Paths.get(fileName), temporary -> {
+			try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				buffer.rewind();
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Saves the network in the format of the file's extension without waiting for the file to be written: the weights
+	 * (or for a .snet file a clone of the whole network) are copied on the calling thread, and written in the background.
+	 */
+	public static Future<Path> save(NeuralNet nnet, String fileName) {
+		final NeuralNetWeights weights = isWeightFile(fileName) ? of(nnet) : null;
+		final NeuralNet clone = weights == null ? nnet.cloneNet() : null;
+
+		return WRITER.submit(() -> {
+			try {
+				if (weights != null) {
+					weights.write(fileName);
+				} else {
+					writeSerialized(clone, fileName);
+				}
+				return Paths.get(fileName);
+			} catch (IOException | RuntimeException e) {
+				e.printStackTrace();
+				throw e;
+			}
+		});
+	}
+
+	/**
+	 * Writes the network with Java serialization, as a .snet file.
+	 */
+	public static void writeSerialized(NeuralNet nnet, String fileName) throws IOException {
+		replace(Paths.get(fileName), temporary -> {
+			try (OutputStream stream = Files.newOutputStream(temporary); ObjectOutputStream out = new ObjectOutputStream(stream)) {
+				out.writeObject(nnet);
+			}
+		});
+	}
+
+	private static interface FileWriter {
+		void write(Path temporary) throws IOException;
+	}
+
+	private static void replace(Path path, FileWriter writer) throws IOException {
+		path = path.toAbsolutePath();
+		Files.createDirectories(path.getParent());
+		Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+		writer.write(temporary);
+		Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static int headerSize(int numberOfLayers) {
+		return ((3 + numberOfLayers) * 4 + 7) & ~7;
+	}
+
+	private static int size(int [] layerSizes) {
+		int doubles = 1;
+		for (int l = 1; l < layerSizes.length; l++) {
+			doubles += 2 * layerSizes[l] + 2 * layerSizes[l - 1] * layerSizes[l];
+		}
+		return headerSize(layerSizes.length) + 8 * doubles;
+	}
+
+	private static Layer [] getLayers(NeuralNet nnet) {
+		Layer [] layers = new Layer [LAYER_NAMES.length];
+		for (int l = 0; l < layers.length; l++) {
+			layers[l] = nnet.getLayer(LAYER_NAMES[l]);
+			if (layers[l] == null) {
+				throw new IllegalArgumentException("The neural network has no layer " + LAYER_NAMES[l] + ".");
+			}
+		}
+		return layers;
+	}
+
+	private static Matrix getBias(Layer layer, int rows) {
+		Matrix matrix = layer.getBias();
+		if (matrix == null || matrix.value == null || matrix.value.length != rows) {
+			throw new IllegalArgumentException("The layer " + layer.getLayerName() + " has no bias for " + rows + " rows.");
+		}
+		return matrix;
+	}
+
+	private static Matrix getWeights(Layer layer, int inputs, int outputs) {
+		for (Object o : layer.getAllInputs()) {
+			if (o instanceof FullSynapse) {
+				Matrix matrix = ((FullSynapse) o).getWeights();
+				if (matrix != null && matrix.value != null && matrix.value.length == inputs && matrix.value[0].length == outputs) {
+					return matrix;
+				}
+			}
+		}
+		throw new IllegalArgumentException("The layer " + layer.getLayerName() + " has no " + inputs + "x" + outputs + " input synapse.");
+	}
+
+	public static void main(String [] args) throws IOException {
+		if (args.length != 2) {
+			System.err.println("Usage: NeuralNetWeights from to, where either file is a .snet or a " + EXTENSION + " file");
+			System.exit(1);
+		}
+
+		NeuralNet nnet = AgentController.loadNeuralNet(args[0]);
+		if (nnet == null) {
+			System.err.println("No neural network in " + args[0]);
+			System.exit(1);
+		}
+
+		if (isWeightFile(args[1])) {
+			of(nnet).write(args[1]);
+		} else {
+			writeSerialized(nnet, args[1]);
+		}
+		System.out.println("Converted " + args[0] + " to " + args[1]);
+	}
+}
@@ -0,0 +1,198 @@
+package networkcues;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Attributes of the communication edges for a block of rows in the upper triangle of the agent pairs.
+ * Row i holds the pairs (i, j) with j > i, in the order in which the builder creates their edges.
+ * The attributes only depend on the spatial index, the kinship index and the group of each agent, so the
+ * rows can be computed in any order (and on any number of threads) without changing the result.
+ */
+public class PairAttributeBlock {
+
+	// Maximum number of pairs held in one block (a single row is always allowed to exceed it)
+	public static final int MAX_PAIRS = 1 << 20;
+
+	// Number of pairs below which a fork join task computes its rows itself
+	private static final int SPLIT_THRESHOLD = 1 << 14;
+
+	// Distance histogram bins hold the normalized distance rounded to quarters, from -1 to 1
+	public static final int DISTANCE_BINS = 9;
+
+	private final int numberOfAgents;
+	private final int rowFrom;
+	private final int rowTo;
+	private final int [] rowOffset;
+
+	protected final double [] kinship;
+	protected final double [] normalizedDistance;
+	protected final boolean [] sameGroup;
+
+	private PairAttributeBlock(int numberOfAgents, int rowFrom, int rowTo) {
+		this.numberOfAgents = numberOfAgents;
+		this.rowFrom = rowFrom;
+		this.rowTo = rowTo;
+		this.rowOffset = new int [rowTo - rowFrom + 1];
+		for (int i = rowFrom; i < rowTo; i++) {
+			this.rowOffset[i - rowFrom + 1] = this.rowOffset[i - rowFrom] + (numberOfAgents - 1 - i);
+		}
+
+		int numberOfPairs = this.rowOffset[rowTo - rowFrom];
+		this.kinship = new double [numberOfPairs];
+		this.normalizedDistance = new double [numberOfPairs];
+		this.sameGroup = new boolean [numberOfPairs];
+	}
+
+	/**
+	 * Last row (exclusive) of the block that starts at the given row.
+	 */
+	public static int getBlockEnd(int numberOfAgents, int rowFrom) {
+		int rowTo = rowFrom + 1;
+		long numberOfPairs = numberOfAgents - 1 - rowFrom;
+		while (rowTo < numberOfAgents && numberOfPairs + (numberOfAgents - 1 - rowTo) <= MAX_PAIRS) {
+			numberOfPairs += numberOfAgents - 1 - rowTo;
+			rowTo++;
+		}
+		return rowTo;
+	}
+
+	/**
+	 * Computes the attributes for the rows [rowFrom, rowTo) and adds them to the histogram.
+	 * With a fork join pool the rows are split over its workers, without one they are computed on the calling thread.
+	 */
+	public static PairAttributeBlock compute(int rowFrom, int rowTo, SpatialIndex spatialIndex, KinshipIndex kinshipIndex,
+			int [] groupIDs, ForkJoinPool pool, Histogram histogram) {
+
+		PairAttributeBlock block = new PairAttributeBlock(spatialIndex.size(), rowFrom, rowTo);
+		RowTask task = new RowTask(block, rowFrom, rowTo, spatialIndex, kinshipIndex, groupIDs);
+		histogram.add(pool != null ? pool.invoke(task) : task.compute());
+		return block;
+	}
+
+	public int getRowFrom() {
+		return this.rowFrom;
+	}
+
+	public int getRowTo() {
+		return this.rowTo;
+	}
+
+	/**
+	 * Index of the pair (i, j) in the attribute arrays, with rowFrom <= i < rowTo and j > i.
+	 */
+	public int indexOf(int i, int j) {
+		return this.rowOffset[i - this.rowFrom] + (j - i - 1);
+	}
+
+	private void computeRow(int i, SpatialIndex spatialIndex, KinshipIndex kinshipIndex, int [] groupIDs, Histogram histogram) {
+
+		int offset = this.rowOffset[i - this.rowFrom];
+
+		// Determine the normalized distance to the rest of the row in one go
+		spatialIndex.getNormalizedDistances(i, i + 1, this.numberOfAgents, this.normalizedDistance, offset);
+
+		// Everybody in the row is assumed not to be kin, unless the kinship index says otherwise
+		for (int j = i + 1, k = offset; j < this.numberOfAgents; j++, k++) {
+			this.kinship[k] = Double.POSITIVE_INFINITY;
+			this.sameGroup[k] = groupIDs[i] == groupIDs[j];
+			histogram.distance[Histogram.getDistanceBin(this.normalizedDistance[k])]++;
+		}
+
+		int farKin = this.numberOfAgents - 1 - i;
+		for (int j : kinshipIndex.getKinPositions(i)) {
+			if (j > i) {
+				int hops = kinshipIndex.getHops(i, j);
+				this.kinship[offset + j - i - 1] = hops;
+				histogram.kinship[hops]++;
+				farKin--;
+			}
+		}
+		histogram.kinship[histogram.kinship.length - 1] += farKin;
+	}
+
+	private static class RowTask extends RecursiveTask<Histogram> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final PairAttributeBlock block;
+		private final int rowFrom;
+		private final int rowTo;
+		private final SpatialIndex spatialIndex;
+		private final KinshipIndex kinshipIndex;
+		private final int [] groupIDs;
+
+		private RowTask(PairAttributeBlock block, int rowFrom, int rowTo, SpatialIndex spatialIndex, KinshipIndex kinshipIndex, int [] groupIDs) {
+			this.block = block;
+			this.rowFrom = rowFrom;
+			this.rowTo = rowTo;
+			this.spatialIndex = spatialIndex;
+			this.kinshipIndex = kinshipIndex;
+			this.groupIDs = groupIDs;
+		}
+
+		@Override
+		protected Histogram compute() {
+
+			int numberOfPairs = this.block.rowOffset[this.rowTo - this.block.rowFrom] - this.block.rowOffset[this.rowFrom - this.block.rowFrom];
+			if (numberOfPairs > SPLIT_THRESHOLD && this.rowTo - this.rowFrom > 1 && getPool() != null) {
+
+				// Split the rows so that both halves hold about the same number of pairs
+				int middle = this.rowFrom + 1;
+				int halfOfThePairs = this.block.rowOffset[this.rowFrom - this.block.rowFrom] + numberOfPairs / 2;
+				while (middle < this.rowTo - 1 && this.block.rowOffset[middle - this.block.rowFrom] < halfOfThePairs) {
+					middle++;
+				}
+
+				RowTask left = new RowTask(this.block, this.rowFrom, middle, this.spatialIndex, this.kinshipIndex, this.groupIDs);
+				RowTask right = new RowTask(this.block, middle, this.rowTo, this.spatialIndex, this.kinshipIndex, this.groupIDs);
+				left.fork();
+				Histogram histogram = right.compute();
+				histogram.add(left.join());
+				return histogram;
+			}
+
+			Histogram histogram = new Histogram();
+			for (int i = this.rowFrom; i < this.rowTo; i++) {
+				this.block.computeRow(i, this.spatialIndex, this.kinshipIndex, this.groupIDs, histogram);
+			}
+			return histogram;
+		}
+	}
+
+	/**
+	 * Debug histograms of the pair attributes. Kinship is binned per hop, with the last bin for everybody who is not kin.
+	 */
+	public static class Histogram {
+
+		protected final int [] kinship;
+		protected final int [] distance;
+
+		public Histogram() {
+			this.kinship = new int [NetworkCuesBuilder.LEN_FAMILY + 1];
+			this.distance = new int [DISTANCE_BINS];
+		}
+
+		public static int getDistanceBin(double normalizedDistance) {
+			int bin = (int) Math.round(normalizedDistance * 4) + DISTANCE_BINS / 2;
+			return bin < 0 ? 0 : bin >= DISTANCE_BINS ? DISTANCE_BINS - 1 : bin;
+		}
+
+		public void add(Histogram other) {
+			for (int i = 0; i < this.kinship.length; i++) {
+				this.kinship[i] += other.kinship[i];
+			}
+			for (int i = 0; i < this.distance.length; i++) {
+				this.distance[i] += other.distance[i];
+			}
+		}
+
+		public int [] getKinshipCounts() {
+			return this.kinship;
+		}
+
+		public int [] getDistanceCounts() {
+			return this.distance;
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package networkcues;
+
+/**
+ * The communication attributes of the two agents of a trade, resolved once when the trade is prepared instead of
+ * looking up their communication edge for every attribute of both sides. The distance and kinship don't change during
+ * a run and are kept. The trade history is still read from the edge (or the pair state table) whenever it's asked for,
+ * so it stays current while the trade is recorded by one agent and then the other.
+ */
+public class PairContext {
+
+	// Kinship coefficient 1 / 2^k of every kinship distance within a family
+	private static final double [] KINSHIP_COEFFICIENTS = new double [NetworkCuesBuilder.LEN_FAMILY];
+
+	static {
+		for (int k = 0; k < KINSHIP_COEFFICIENTS.length; k++) {
+			KINSHIP_COEFFICIENTS[k] = 1 / Math.pow(2, k);
+		}
+	}
+
+	private final CommunicationIndex communication;
+	private final Agent agent1;
+	private final Agent agent2;
+	private final double normalizedDistance;
+	private final double kinshipCoefficient;
+	private CommunicationEdge<Object> edge;
+
+	PairContext(CommunicationIndex communication, Agent agent1, Agent agent2, CommunicationEdge<Object> edge, double normalizedDistance, double kinship) {
+		this.communication = communication;
+		this.agent1 = agent1;
+		this.agent2 = agent2;
+		this.edge = edge;
+		this.normalizedDistance = normalizedDistance;
+		this.kinshipCoefficient = getKinshipCoefficient(kinship);
+	}
+
+	/**
+	 * 1 / 2^kinship for kin within the family, 0 for anyone further away.
+	 */
+	public static double getKinshipCoefficient(double kinship) {
+		if (kinship >= NetworkCuesBuilder.LEN_FAMILY) {
+			return 0;
+		}
+
+		int k = (int) kinship;
+		return k == kinship && k >= 0 ? KINSHIP_COEFFICIENTS[k] : 1 / Math.pow(2, kinship);
+	}
+
+	public double getNormalizedDistance() {
+		return this.normalizedDistance;
+	}
+
+	public double getKinshipCoefficient() {
+		return this.kinshipCoefficient;
+	}
+
+	/**
+	 * Trades between the agents, like {@link CommunicationIndex#getNumberOfTrades(Agent, Agent)}.
+	 */
+	public int getNumberOfTrades() {
+		PairStateTable pairState = this.communication.getPairStateTable();
+		if (pairState != null && this.agent1 != this.agent2) {
+			return pairState.getNumberOfTrades(this.agent1.id, this.agent2.id) / 2;
+		}
+
+		return this.edge != null ? this.edge.getNumberOfTrades() : 0;
+	}
+
+	/**
+	 * Last trade result as seen by the given agent of the pair, like {@link CommunicationIndex#getLastTradeResult(Agent, Agent)}.
+	 */
+	public TradeEdge.TradeResult getLastTradeResult(Agent agent) {
+		Agent other = this.getPartnerOf(agent);
+		PairStateTable pairState = this.communication.getPairStateTable();
+		if (pairState != null && agent != other) {
+			return pairState.getLastTradeResult(agent.id, other.id);
+		}
+
+		if (this.edge != null) {
+			return this.edge.getLastTradeResult(agent);
+		}
+
+		return this.communication.isSparse() ? TradeEdge.TradeResult.CC : null;
+	}
+
+	/**
+	 * Records the trade as reported by the given agent of the pair, like {@link CommunicationIndex#recordTrade(Agent, Agent, TradeEdge.TradeResult)}.
+	 */
+	public void recordTrade(Agent agent, TradeEdge.TradeResult tradeResult) {
+		Agent other = this.getPartnerOf(agent);
+		PairStateTable pairState = this.communication.getPairStateTable();
+		if (pairState != null && agent != other) {
+			pairState.addTrade(agent.id, other.id);
+			pairState.setLastTradeResult(Math.min(agent.id, other.id), Math.max(agent.id, other.id), tradeResult);
+			return;
+		}
+
+		// The sparse network only gets an edge for the pair once it has traded
+		if (this.edge == null) {
+			this.edge = this.communication.getOrCreateEdge(agent, other);
+		}
+		if (this.edge != null) {
+			this.edge.addTrade();
+			this.edge.setLastTradeResult(agent, tradeResult);
+		}
+	}
+
+	private Agent getPartnerOf(Agent agent) {
+		if (agent == this.agent1) {
+			return this.agent2;
+		}
+		if (agent == this.agent2) {
+			return this.agent1;
+		}
+		throw new IllegalArgumentException("Agent " + agent.id + " isn't part of the pair " + this.agent1.id + " and " + this.agent2.id + ".");
+	}
+}
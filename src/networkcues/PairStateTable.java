@@ -0,0 +1,130 @@
+package networkcues;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Off-heap table with the mutable state of every pair of agents, indexed by agent id.
+ * Each pair takes four bytes: the number of trades, the last trade result and whether the agents are in the same group.
+ * The last trade result is stored as seen by the agent with the lowest id, which is also the source of the
+ * communication edge between the two. Reading and updating the table does not allocate.
+ */
+public class PairStateTable {
+
+	// Every chunk holds 2^26 pairs (256 MB), since a single buffer can't be larger than 2 GB
+	private static final int CHUNK_SHIFT = 26;
+	private static final long CHUNK_MASK = (1L << CHUNK_SHIFT) - 1;
+	private static final int BYTES_PER_PAIR = 4;
+
+	// Layout of a pair: bits 0-1 hold the last trade result, bit 2 the group flag and bits 3-31 the number of trades
+	private static final int RESULT_MASK = 0x3;
+	private static final int SAME_GROUP_BIT = 0x4;
+	private static final int TRADES_SHIFT = 3;
+	private static final int MAX_TRADES = (1 << (32 - TRADES_SHIFT)) - 1;
+
+	private static final TradeEdge.TradeResult [] RESULTS = TradeEdge.TradeResult.values();
+
+	private final int numberOfAgents;
+	private final long numberOfPairs;
+	private final ByteBuffer [] chunks;
+
+	public PairStateTable(int numberOfAgents) {
+		this.numberOfAgents = numberOfAgents;
+		this.numberOfPairs = (long) numberOfAgents * (numberOfAgents - 1) / 2;
+
+		// A new buffer is filled with zeros, which stands for no trades, a CC last trade result and different groups
+		int numberOfChunks = (int) ((this.numberOfPairs + CHUNK_MASK) >>> CHUNK_SHIFT);
+		this.chunks = new ByteBuffer [numberOfChunks];
+		for (int c = 0; c < numberOfChunks; c++) {
+			long pairsInChunk = Math.min(1L << CHUNK_SHIFT, this.numberOfPairs - ((long) c << CHUNK_SHIFT));
+			this.chunks[c] = ByteBuffer.allocateDirect((int) pairsInChunk * BYTES_PER_PAIR);
+		}
+	}
+
+	public int getNumberOfAgents() {
+		return this.numberOfAgents;
+	}
+
+	public long getNumberOfPairs() {
+		return this.numberOfPairs;
+	}
+
+	/**
+	 * Index of the pair in the upper triangle of the (id, id) matrix.
+	 */
+	public long indexOf(int id1, int id2) {
+		if (id1 == id2 || id1 < 0 || id2 < 0 || id1 >= this.numberOfAgents || id2 >= this.numberOfAgents) {
+			throw new IndexOutOfBoundsException("No pair state for agents " + id1 + " and " + id2 + ".");
+		}
+
+		long i = Math.min(id1, id2);
+		long j = Math.max(id1, id2);
+		return i * (2L * this.numberOfAgents - i - 1) / 2 + (j - i - 1);
+	}
+
+	public int getNumberOfTrades(int id1, int id2) {
+		return this.get(this.indexOf(id1, id2)) >>> TRADES_SHIFT;
+	}
+
+	public void addTrade(int id1, int id2) {
+		long index = this.indexOf(id1, id2);
+		int state = this.get(index);
+		if ((state >>> TRADES_SHIFT) < MAX_TRADES) {
+			this.set(index, state + (1 << TRADES_SHIFT));
+		}
+	}
+
+	/**
+	 * Sets the number of recorded trades, for restoring a checkpoint.
+	 */
+	public void setNumberOfTrades(int id1, int id2, int numberOfTrades) {
+		long index = this.indexOf(id1, id2);
+		int state = this.get(index) & ((1 << TRADES_SHIFT) - 1);
+		this.set(index, state | (Math.min(numberOfTrades, MAX_TRADES) << TRADES_SHIFT));
+	}
+
+	/**
+	 * Last trade result between the agents as seen by the agent with id1.
+	 */
+	public TradeEdge.TradeResult getLastTradeResult(int id1, int id2) {
+		TradeEdge.TradeResult tradeResult = RESULTS[this.get(this.indexOf(id1, id2)) & RESULT_MASK];
+		return id1 < id2 ? tradeResult : flip(tradeResult);
+	}
+
+	/**
+	 * Stores the last trade result between the agents as seen by the agent with id1.
+	 */
+	public void setLastTradeResult(int id1, int id2, TradeEdge.TradeResult tradeResult) {
+		long index = this.indexOf(id1, id2);
+		TradeEdge.TradeResult stored = id1 < id2 ? tradeResult : flip(tradeResult);
+		this.set(index, (this.get(index) & ~RESULT_MASK) | stored.ordinal());
+	}
+
+	public boolean inSameGroup(int id1, int id2) {
+		return (this.get(this.indexOf(id1, id2)) & SAME_GROUP_BIT) != 0;
+	}
+
+	public void setSameGroup(int id1, int id2, boolean sameGroup) {
+		long index = this.indexOf(id1, id2);
+		int state = this.get(index);
+		this.set(index, sameGroup ? state | SAME_GROUP_BIT : state & ~SAME_GROUP_BIT);
+	}
+
+	public static TradeEdge.TradeResult flip(TradeEdge.TradeResult tradeResult) {
+		switch(tradeResult) {
+			case CD:
+				return TradeEdge.TradeResult.DC;
+			case DC:
+				return TradeEdge.TradeResult.CD;
+			default:
+				return tradeResult;
+		}
+	}
+
+	private int get(long index) {
+		return this.chunks[(int) (index >>> CHUNK_SHIFT)].getInt((int) (index & CHUNK_MASK) * BYTES_PER_PAIR);
+	}
+
+	private void set(long index, int state) {
+		this.chunks[(int) (index >>> CHUNK_SHIFT)].putInt((int) (index & CHUNK_MASK) * BYTES_PER_PAIR, state);
+	}
+}
@@ -1,7 +1,5 @@
 package networkcues;
 
-import repast.simphony.random.RandomHelper;
-
 public class Profile {
 
 	public static enum Strategy { COOPERATE, DEFECT, TITFORTAT, NONE }; 
@@ -29,49 +27,64 @@ public class Profile {
 	protected double profileFeature6;
 	protected double profileFeature7;
 	
-	public Profile() {
+	// Random streams for the decisions the agent makes during the simulation
+	private final RandomStream partneringRandom;
+	private final RandomStream ratingRandom;
+	
+	public Profile(RandomStreams randomStreams, int id) {
+		this(randomStreams, id, Profile.COOPERATION_PERCENTAGE);
+	}
+
+	/**
+	 * Profile whose strategy is COOPERATE with the given probability, or any strategy with equal probability if it's negative.
+	 */
+	public Profile(RandomStreams randomStreams, int id, double cooperationPercentage) {
+
+		RandomStream random = randomStreams.get(RandomStreams.Phase.PROFILE, id);
+		this.partneringRandom = randomStreams.get(RandomStreams.Phase.PARTNERING, id);
+		this.ratingRandom = randomStreams.get(RandomStreams.Phase.RATING, id);
 
 		// Create a profile
-		this.kinship = RandomHelper.nextDouble() > Profile.TWO_THIRDS;
-		this.network = RandomHelper.nextDouble() > Profile.TWO_THIRDS;
-		this.indirect = RandomHelper.nextDouble() > Profile.TWO_THIRDS;
-		this.group = RandomHelper.nextDouble() > Profile.TWO_THIRDS;
-		this.strategy = this.chooseARandomStrategy(COOPERATION_PERCENTAGE >= 0);
+		this.kinship = random.nextDouble() > Profile.TWO_THIRDS;
+		this.network = random.nextDouble() > Profile.TWO_THIRDS;
+		this.indirect = random.nextDouble() > Profile.TWO_THIRDS;
+		this.group = random.nextDouble() > Profile.TWO_THIRDS;
+		this.strategy = this.chooseARandomStrategy(random, cooperationPercentage);
 
-//		this.customProfile();
+//		this.customProfile(random);
 		
-		this.groupID = RandomHelper.nextIntFromTo(0, NetworkCuesBuilder.COUNT_GROUPS);
+		this.groupID = random.nextIntFromTo(0, NetworkCuesBuilder.COUNT_GROUPS);
 		this.certainty = Profile.TWO_THIRDS;
-		this.talkability = RandomHelper.nextDouble();
+		this.talkability = random.nextDouble();
 		
-		this.profileFeature1 = RandomHelper.nextDoubleFromTo(this.kinship ? 0 : 0.8, this.kinship ? 0.2 : 1);
-		this.profileFeature2 = RandomHelper.nextDoubleFromTo(this.network ? 0 : 0.8, this.network ? 0.2 : 1);
-		this.profileFeature3 = RandomHelper.nextDoubleFromTo(this.indirect ? 0 : 0.8, this.indirect ? 0.2 : 1);
-		this.profileFeature4 = RandomHelper.nextDoubleFromTo(this.group ? 0 : 0.8, this.group ? 0.2 : 1);
-		this.profileFeature5 = RandomHelper.nextDoubleFromTo(this.strategy != Strategy.COOPERATE  ? 0 : 0.8, this.strategy != Strategy.COOPERATE ? 0.2 : 1);
-		this.profileFeature6 = RandomHelper.nextDoubleFromTo(this.strategy != Strategy.DEFECT ? 0 : 0.8, this.strategy != Strategy.DEFECT ? 0.2 : 1);
-		this.profileFeature7 = RandomHelper.nextDoubleFromTo(this.strategy != Strategy.TITFORTAT ? 0 : 0.8, this.strategy != Strategy.TITFORTAT ? 0.2 : 1);
+		this.profileFeature1 = random.nextDoubleFromTo(this.kinship ? 0 : 0.8, this.kinship ? 0.2 : 1);
+		this.profileFeature2 = random.nextDoubleFromTo(this.network ? 0 : 0.8, this.network ? 0.2 : 1);
+		this.profileFeature3 = random.nextDoubleFromTo(this.indirect ? 0 : 0.8, this.indirect ? 0.2 : 1);
+		this.profileFeature4 = random.nextDoubleFromTo(this.group ? 0 : 0.8, this.group ? 0.2 : 1);
+		this.profileFeature5 = random.nextDoubleFromTo(this.strategy != Strategy.COOPERATE  ? 0 : 0.8, this.strategy != Strategy.COOPERATE ? 0.2 : 1);
+		this.profileFeature6 = random.nextDoubleFromTo(this.strategy != Strategy.DEFECT ? 0 : 0.8, this.strategy != Strategy.DEFECT ? 0.2 : 1);
+		this.profileFeature7 = random.nextDoubleFromTo(this.strategy != Strategy.TITFORTAT ? 0 : 0.8, this.strategy != Strategy.TITFORTAT ? 0.2 : 1);
 		
 	}	
 	
-	private void customProfile() {
+	private void customProfile(RandomStream random) {
 		this.kinship = false;
 		this.network = false;
-		this.indirect = RandomHelper.nextDouble() < 0.9;
+		this.indirect = random.nextDouble() < 0.9;
 		this.group = false;
 		
 	}
 	
-	private Strategy chooseARandomStrategy(boolean useCooperationPercentage) {
+	private Strategy chooseARandomStrategy(RandomStream random, double cooperationPercentage) {
 		Strategy [] strategies = Strategy.values();
 		
 		Strategy chosenStrategy = null;
-		if (!useCooperationPercentage) {
-			chosenStrategy = strategies[RandomHelper.nextIntFromTo(0, strategies.length - 1)];
-		}else if (RandomHelper.nextDouble() < COOPERATION_PERCENTAGE) {
+		if (cooperationPercentage < 0) {
+			chosenStrategy = strategies[random.nextIntFromTo(0, strategies.length - 1)];
+		}else if (random.nextDouble() < cooperationPercentage) {
 			chosenStrategy = Strategy.COOPERATE;
 		} else {
-			chosenStrategy = strategies[RandomHelper.nextIntFromTo(1, strategies.length - 1)]; 
+			chosenStrategy = strategies[random.nextIntFromTo(1, strategies.length - 1)]; 
 		}
 		
 		return chosenStrategy;
@@ -110,11 +123,11 @@ public class Profile {
 	}
 
 	public boolean shouldConsiderDistanceWhenPartnering() {
-		return RandomHelper.nextDouble() > Profile.TWO_THIRDS;
+		return this.partneringRandom.nextDouble() > Profile.TWO_THIRDS;
 	}
 
 	public boolean shouldIRate() {		
-		return RandomHelper.nextDouble() > this.talkability;
+		return this.ratingRandom.nextDouble() > this.talkability;
 	}
 	
 }
@@ -0,0 +1,71 @@
+package networkcues;
+
+/**
+ * Small, fast SplitMix64 random number generator. Its whole state is one long, which can be read and restored.
+ * A stream is not thread safe; every agent and phase gets its own stream from {@link RandomStreams} instead.
+ */
+public class RandomStream {
+
+	private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+	private static final double DOUBLE_UNIT = 0x1.0p-53;
+
+	private long state;
+
+	public RandomStream(long seed) {
+		this.state = seed;
+	}
+
+	public long getState() {
+		return this.state;
+	}
+
+	public void setState(long state) {
+		this.state = state;
+	}
+
+	public long nextLong() {
+		this.state += GOLDEN_GAMMA;
+		return mix64(this.state);
+	}
+
+	public int nextInt() {
+		return (int) (this.nextLong() >>> 32);
+	}
+
+	/**
+	 * Uniform double in [0, 1).
+	 */
+	public double nextDouble() {
+		return (this.nextLong() >>> 11) * DOUBLE_UNIT;
+	}
+
+	/**
+	 * Uniform double in [from, to).
+	 */
+	public double nextDoubleFromTo(double from, double to) {
+		return from + (to - from) * this.nextDouble();
+	}
+
+	/**
+	 * Uniform int in [from, to], both inclusive like {@link repast.simphony.random.RandomHelper#nextIntFromTo(int, int)}.
+	 */
+	public int nextIntFromTo(int from, int to) {
+		long n = (long) to - from + 1;
+
+		// Reject the values at the top of the range that would make some results more likely than others
+		long bits;
+		long value;
+		do {
+			bits = this.nextLong() >>> 1;
+			value = bits % n;
+		} while (bits - value + (n - 1) < 0);
+
+		return (int) (from + value);
+	}
+
+	public static long mix64(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+}
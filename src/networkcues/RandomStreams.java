@@ -0,0 +1,91 @@
+package networkcues;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The random streams of one simulation run. Every (phase, id) pair has its own {@link RandomStream}, seeded from the
+ * run's seed, the phase and the id alone. The draws of an agent therefore don't depend on how many other agents drew
+ * before it, or on which thread, which keeps parallel phases reproducible.
+ * Streams are created on first use, which isn't thread safe: look them up on the simulation thread and keep them.
+ */
+public class RandomStreams {
+
+	public static enum Phase { PROFILE, LOCATION, GROUP, KINSHIP, TRADE, PARTNERING, RATING, BOOSTS, SCHEDULE };
+
+	private final long seed;
+	private final Map<Long, RandomStream> streams;
+
+	public RandomStreams(long seed) {
+		this.seed = seed;
+		this.streams = new HashMap<Long, RandomStream>();
+	}
+
+	public long getSeed() {
+		return this.seed;
+	}
+
+	/**
+	 * The stream of the phase for the given id (an agent id, a group id, 0 for the phases that aren't per agent,
+	 * or -1 for draws that can't be tied to an agent).
+	 */
+	public RandomStream get(Phase phase, int id) {
+		long key = ((long) phase.ordinal() << 32) | (id & 0xFFFFFFFFL);
+		RandomStream stream = this.streams.get(key);
+
+		if (stream == null) {
+			stream = new RandomStream(this.seedOf(phase, id));
+			this.streams.put(key, stream);
+		}
+
+		return stream;
+	}
+
+	/**
+	 * All the streams created so far, keyed by phase (high 32 bits) and id (low 32 bits).
+	 */
+	public Map<Long, RandomStream> getStreams() {
+		return this.streams;
+	}
+
+	/**
+	 * Writes the seed and the state of every stream, for a checkpoint.
+	 */
+	public void writeState(DataOutput out) throws IOException {
+		out.writeLong(this.seed);
+		out.writeInt(this.streams.size());
+		for (Map.Entry<Long, RandomStream> entry : new TreeMap<Long, RandomStream>(this.streams).entrySet()) {
+			out.writeLong(entry.getKey());
+			out.writeLong(entry.getValue().getState());
+		}
+	}
+
+	/**
+	 * Restores the streams of a checkpoint of the same run. Streams that already exist keep their identity, so the agents
+	 * holding them continue from the restored state.
+	 */
+	public void readState(DataInput in) throws IOException {
+		long seed = in.readLong();
+		if (seed != this.seed) {
+			throw new IOException("The checkpoint has seed " + seed + " instead of " + this.seed + ".");
+		}
+
+		Phase [] phases = Phase.values();
+		int numberOfStreams = in.readInt();
+		for (int i = 0; i < numberOfStreams; i++) {
+			long key = in.readLong();
+			long state = in.readLong();
+			this.get(phases[(int) (key >>> 32)], (int) key).setState(state);
+		}
+	}
+
+	private long seedOf(Phase phase, int id) {
+		long z = RandomStream.mix64(this.seed);
+		z = RandomStream.mix64(z ^ (phase.ordinal() + 1L) * 0x9E3779B97F4A7C15L);
+		return RandomStream.mix64(z ^ (id + 1L) * 0xC2B2AE3D27D4EB4FL);
+	}
+}
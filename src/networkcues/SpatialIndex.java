@@ -0,0 +1,225 @@
+package networkcues;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Uniform grid (cell list) over the agent locations in the wrap-around world.
+ * The cells are at least as wide as the neighborhood, so a neighborhood query only needs to visit
+ * the cell of the agent and the cells directly around it.
+ */
+public class SpatialIndex {
+
+	private final int lenSpace;
+	private final double cellWidth;
+	private final int cellsPerSide;
+
+	private final Agent [] agents;
+	private final int [] positionOfId;
+	private final double [] xCoords;
+	private final double [] yCoords;
+
+	// Agents sorted by cell: the agents of cell c are cellAgents[cellStart[c]] up to cellAgents[cellStart[c + 1]]
+	private final int [] cellStart;
+	private final int [] cellAgents;
+
+	public SpatialIndex(Iterable<?> collection) {
+		this(collection, NetworkCuesBuilder.LEN_SPACE, NetworkCuesBuilder.LEN_NEIGHBORHOOD);
+	}
+
+	public SpatialIndex(Iterable<?> collection, int lenSpace, double minCellWidth) {
+
+		// List all the agents in the collection
+		List<Agent> agentList = new ArrayList<Agent>();
+		int maxId = -1;
+		for (Object o : collection) {
+			if (o instanceof Agent) {
+				Agent agent = (Agent) o;
+				if (agent.location.dimensionCount() != 2) {
+					throw new IllegalArgumentException("The spatial index only supports two dimensional locations.");
+				}
+				agentList.add(agent);
+				maxId = Math.max(maxId, agent.id);
+			}
+		}
+
+		this.lenSpace = lenSpace;
+		this.cellsPerSide = Math.max(1, (int) Math.floor(lenSpace / minCellWidth));
+		this.cellWidth = (double) lenSpace / this.cellsPerSide;
+
+		int numberOfAgents = agentList.size();
+		this.agents = agentList.toArray(new Agent [numberOfAgents]);
+		this.positionOfId = new int [maxId + 1];
+		this.xCoords = new double [numberOfAgents];
+		this.yCoords = new double [numberOfAgents];
+
+		// Count the agents in every cell
+		int [] cellOf = new int [numberOfAgents];
+		this.cellStart = new int [this.cellsPerSide * this.cellsPerSide + 1];
+		for (int i = 0; i < numberOfAgents; i++) {
+			Agent agent = this.agents[i];
+			this.positionOfId[agent.id] = i;
+			this.xCoords[i] = agent.location.getCoord(0);
+			this.yCoords[i] = agent.location.getCoord(1);
+
+			cellOf[i] = this.getCell(this.getColumn(this.xCoords[i]), this.getColumn(this.yCoords[i]));
+			this.cellStart[cellOf[i] + 1]++;
+		}
+
+		// Turn the counts into offsets and fill in the cells (agents keep their collection order within a cell)
+		for (int c = 0; c < this.cellsPerSide * this.cellsPerSide; c++) {
+			this.cellStart[c + 1] += this.cellStart[c];
+		}
+		int [] fill = new int [this.cellsPerSide * this.cellsPerSide];
+		this.cellAgents = new int [numberOfAgents];
+		for (int i = 0; i < numberOfAgents; i++) {
+			this.cellAgents[this.cellStart[cellOf[i]] + fill[cellOf[i]]++] = i;
+		}
+	}
+
+	/**
+	 * Wrap-around difference between two coordinates. This is the per-dimension distance used by
+	 * {@link Agent#getDistanceTo(Agent)}.
+	 */
+	public static double getTorusDifference(double coord1, double coord2, int lenSpace) {
+
+		// Get the difference in this dimension
+		double absDiff = Math.abs(coord1 - coord2);
+
+		// The world is continuous, so make sure the difference is within our dimension length
+		while (absDiff > lenSpace){
+			absDiff -= lenSpace;
+		}
+
+		// The world is continuous, so check the wrap around distance
+		if (absDiff > lenSpace / 2){
+			absDiff = lenSpace - absDiff;
+		}
+
+		return absDiff;
+	}
+
+	/**
+	 * Maps a distance onto the normalized distance stored in the communication network:
+	 * neighbors get a value in (0, 1], everybody else a value of zero or below.
+	 */
+	public static double getNormalizedDistance(double distance) {
+		if (distance < NetworkCuesBuilder.LEN_NEIGHBORHOOD) {
+			return 1 - (distance / NetworkCuesBuilder.LEN_NEIGHBORHOOD);
+		} else {
+			return (NetworkCuesBuilder.LEN_NEIGHBORHOOD - distance) / (NetworkCuesBuilder.LEN_SPACE - NetworkCuesBuilder.LEN_NEIGHBORHOOD);
+		}
+	}
+
+	public int size() {
+		return this.agents.length;
+	}
+
+	public Agent getAgent(int position) {
+		return this.agents[position];
+	}
+
+	public int getPosition(Agent agent) {
+		return this.positionOfId[agent.id];
+	}
+
+	public double getDistance(int position1, int position2) {
+		double dx = getTorusDifference(this.xCoords[position1], this.xCoords[position2], this.lenSpace);
+		double dy = getTorusDifference(this.yCoords[position1], this.yCoords[position2], this.lenSpace);
+		return Math.sqrt(dx * dx + dy * dy);
+	}
+
+	public double getDistance(Agent agent1, Agent agent2) {
+		return this.getDistance(this.getPosition(agent1), this.getPosition(agent2));
+	}
+
+	/**
+	 * Computes the normalized distance from the agent at the given position to the agents at positions
+	 * [from, to) in one pass over the coordinate arrays. The result for position j is written to out[offset + j - from].
+	 */
+	public void getNormalizedDistances(int position, int from, int to, double [] out) {
+		this.getNormalizedDistances(position, from, to, out, 0);
+	}
+
+	public void getNormalizedDistances(int position, int from, int to, double [] out, int offset) {
+		double x = this.xCoords[position];
+		double y = this.yCoords[position];
+		for (int j = from; j < to; j++) {
+			double dx = getTorusDifference(x, this.xCoords[j], this.lenSpace);
+			double dy = getTorusDifference(y, this.yCoords[j], this.lenSpace);
+			out[offset + j - from] = getNormalizedDistance(Math.sqrt(dx * dx + dy * dy));
+		}
+	}
+
+	/**
+	 * Number of other agents closer than the radius to the agent at the given position.
+	 */
+	public int countNeighbors(int position, double radius) {
+		return this.collectNeighbors(position, radius, null);
+	}
+
+	public int countNeighbors(Agent agent, double radius) {
+		return this.countNeighbors(this.getPosition(agent), radius);
+	}
+
+	/**
+	 * Positions of the other agents closer than the radius to the agent at the given position, in ascending order.
+	 */
+	public int [] getNeighborPositions(int position, double radius) {
+		int [] neighbors = new int [this.collectNeighbors(position, radius, null)];
+		this.collectNeighbors(position, radius, neighbors);
+		Arrays.sort(neighbors);
+		return neighbors;
+	}
+
+	public List<Agent> getNeighbors(Agent agent, double radius) {
+		int [] positions = this.getNeighborPositions(this.getPosition(agent), radius);
+		List<Agent> neighbors = new ArrayList<Agent>(positions.length);
+		for (int position : positions) {
+			neighbors.add(this.agents[position]);
+		}
+		return neighbors;
+	}
+
+	private int collectNeighbors(int position, double radius, int [] out) {
+
+		// Determine how many cells around the agent could contain a neighbor
+		int reach = (int) Math.ceil(radius / this.cellWidth);
+		int span = 2 * reach + 1 >= this.cellsPerSide ? this.cellsPerSide : 2 * reach + 1;
+		int firstColumn = span == this.cellsPerSide ? 0 : this.getColumn(this.xCoords[position]) - reach;
+		int firstRow = span == this.cellsPerSide ? 0 : this.getColumn(this.yCoords[position]) - reach;
+
+		int count = 0;
+		for (int i = 0; i < span; i++) {
+			for (int j = 0; j < span; j++) {
+				int cell = this.getCell(firstColumn + i, firstRow + j);
+				for (int k = this.cellStart[cell]; k < this.cellStart[cell + 1]; k++) {
+					int other = this.cellAgents[k];
+					if (other != position && this.getDistance(position, other) < radius) {
+						if (out != null) {
+							out[count] = other;
+						}
+						count++;
+					}
+				}
+			}
+		}
+
+		return count;
+	}
+
+	private int getColumn(double coord) {
+		double wrapped = coord % this.lenSpace;
+		if (wrapped < 0) {
+			wrapped += this.lenSpace;
+		}
+		return Math.min((int) (wrapped / this.cellWidth), this.cellsPerSide - 1);
+	}
+
+	private int getCell(int column, int row) {
+		column = ((column % this.cellsPerSide) + this.cellsPerSide) % this.cellsPerSide;
+		row = ((row % this.cellsPerSide) + this.cellsPerSide) % this.cellsPerSide;
+		return row * this.cellsPerSide + column;
+	}
+}
@@ -0,0 +1,262 @@
+package networkcues;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.stream.LongStream;
+
+import org.joone.net.NeuralNet;
+
+/**
+ * Runs the replications and points of a parameter sweep side by side in one process, each on its own
+ * {@link HeadlessRunner}. The weights of the pretrained network are loaded once and copied into a new network for every
+ * run, so the file is neither read again nor overwritten: the runs save their networks, journals and logs in the output
+ * directory. The summaries of the runs are collected into one table, in the order of the runs, with the error of every
+ * run that failed. The runs don't print their metrics, the metrics of the whole sweep are printed at the end.
+ *
+ * Usage: SweepExecutor [--agents n,n..] [--modes mode,mode..] [--cooperation p,p..] [--seeds n,n..] [--replications n]
+ *                      [--ticks n] [--threads n] [--output dir] [--results file]
+ */
+public class SweepExecutor {
+
+	public static final String OUTPUT_DIRECTORY = "output/sweep";
+
+	/**
+	 * One point of the sweep with one seed.
+	 */
+	public static class Run {
+
+		public final int index;
+		public final int agents;
+		public final AgentController.Mode mode;
+		public final double cooperationPercentage;
+		public final long seed;
+
+		public Run(int index, int agents, AgentController.Mode mode, double cooperationPercentage, long seed) {
+			this.index = index;
+			this.agents = agents;
+			this.mode = mode;
+			this.cooperationPercentage = cooperationPercentage;
+			this.seed = seed;
+		}
+	}
+
+	/**
+	 * Summary of a run, or the error that ended it.
+	 */
+	public static class Result {
+
+		public final Run run;
+		protected long ticks;
+		protected long trades;
+		protected double buildSeconds;
+		protected double runSeconds;
+		protected int interrogations;
+		protected double cooperationRatio;
+		protected double correctnessRatio;
+		protected double boostRatio;
+		protected String error;
+
+		public Result(Run run) {
+			this.run = run;
+			this.cooperationRatio = Double.NaN;
+			this.correctnessRatio = Double.NaN;
+			this.boostRatio = Double.NaN;
+			this.error = "";
+		}
+
+		public static String header() {
+			return "run,agents,mode,cooperation,seed,ticks,trades,build_s,run_s,ticks_per_s,interrogations,cooperation_ratio,correctness_ratio,boost_ratio,error";
+		}
+
+		@Override
+		public String toString() {
+			return this.run.index + "," + this.run.agents + "," + this.run.mode + "," + this.run.cooperationPercentage + "," + this.run.seed
+					+ "," + this.ticks + "," + this.trades + "," + String.format("%.3f", this.buildSeconds) + "," + String.format("%.3f", this.runSeconds)
+					+ "," + String.format("%.1f", this.runSeconds > 0 ? this.ticks / this.runSeconds : 0) + "," + this.interrogations
+					+ "," + this.cooperationRatio + "," + this.correctnessRatio + "," + this.boostRatio + "," + this.error.replace(',', ';');
+		}
+	}
+
+	private final NeuralNetWeights pretrainedWeights;
+	private final String outputDirectory;
+	private final int threads;
+
+	public SweepExecutor(String pathToNeuralNetFile, String outputDirectory, int threads) {
+		this.pretrainedWeights = loadWeights(pathToNeuralNetFile);
+		this.outputDirectory = outputDirectory;
+		this.threads = threads;
+		new File(outputDirectory).mkdirs();
+	}
+
+	/**
+	 * Weights of the network in the file, or null if there is none.
+	 */
+	private static NeuralNetWeights loadWeights(String pathToNeuralNetFile) {
+		if (pathToNeuralNetFile == null || !new File(pathToNeuralNetFile).isFile()) {
+			return null;
+		}
+		NeuralNet nnet = AgentController.loadNeuralNet(pathToNeuralNetFile);
+		return nnet != null ? NeuralNetWeights.of(nnet) : null;
+	}
+
+	/**
+	 * All the combinations of the parameters, with every seed.
+	 */
+	public static List<Run> createRuns(int [] agents, AgentController.Mode [] modes, double [] cooperationPercentages, long [] seeds) {
+		List<Run> runs = new ArrayList<Run>();
+		for (int a : agents) {
+			for (AgentController.Mode mode : modes) {
+				for (double cooperationPercentage : cooperationPercentages) {
+					for (long seed : seeds) {
+						runs.add(new Run(runs.size(), a, mode, cooperationPercentage, seed));
+					}
+				}
+			}
+		}
+		return runs;
+	}
+
+	/**
+	 * Runs every run for the given number of ticks and returns their results in the same order.
+	 */
+	public List<Result> execute(List<Run> runs, final long ticks) throws InterruptedException {
+		ExecutorService pool = Executors.newFixedThreadPool(this.threads);
+		try {
+			List<Future<Result>> futures = new ArrayList<Future<Result>>();
+			for (final Run run : runs) {
+				futures.add(pool.submit(() -> this.execute(run, ticks)));
+			}
+
+			// A run that failed outside of the simulation still gets its result, with the error
+			List<Result> results = new ArrayList<Result>();
+			for (int i = 0; i < futures.size(); i++) {
+				try {
+					results.add(futures.get(i).get());
+				} catch (ExecutionException e) {
+					Result result = new Result(runs.get(i));
+					result.error = e.getCause().toString();
+					results.add(result);
+				}
+			}
+			return results;
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	private Result execute(Run run, long ticks) {
+		Result result = new Result(run);
+
+		NetworkCuesBuilder builder = new NetworkCuesBuilder();
+		builder.setAgentCount(run.agents);
+		builder.setMode(run.mode);
+		builder.setCooperationPercentage(run.cooperationPercentage);
+		builder.setSeed(run.seed);
+		builder.setPretrainedWeights(this.pretrainedWeights);
+		builder.setNeuralNetPath(new File(this.outputDirectory, "run-" + run.index + NeuralNetWeights.EXTENSION).getPath());
+		if (NetworkCuesBuilder.TRADE_JOURNAL) {
+			builder.setTradeJournalPath(new File(this.outputDirectory, "run-" + run.index + ".journal").getPath());
+		}
+
+		// Every run prints to its own log, so the output of the runs doesn't get mixed up
+		PrintStream log;
+		try {
+			log = new PrintStream(new File(this.outputDirectory, "run-" + run.index + ".log"), "UTF-8");
+		} catch (IOException e) {
+			result.error = e.toString();
+			return result;
+		}
+		builder.setOutput(log);
+
+		HeadlessRunner runner = new HeadlessRunner(builder);
+		runner.setReportMetrics(false);
+		try {
+			long start = System.nanoTime();
+			runner.build();
+			result.buildSeconds = (System.nanoTime() - start) / 1e9;
+
+			start = System.nanoTime();
+			while (runner.getTick() < ticks) {
+				runner.step();
+			}
+			result.runSeconds = (System.nanoTime() - start) / 1e9;
+		} catch (RuntimeException e) {
+			result.error = e.toString();
+		} finally {
+			runner.end();
+			log.close();
+		}
+
+		// Summarize the run
+		AgentController controller = builder.getAgentController();
+		result.ticks = runner.getTick();
+		result.trades = runner.getTrades();
+		if (controller != null) {
+			result.interrogations = controller.getInterrogations();
+			result.cooperationRatio = controller.getCooperationRatio();
+			result.correctnessRatio = controller.getCorrectnessRatio();
+			result.boostRatio = controller.getBoostRatio();
+		}
+		return result;
+	}
+
+	public static void writeResults(List<Result> results, Writer writer) {
+		PrintWriter out = new PrintWriter(writer);
+		out.println(Result.header());
+		for (Result result : results) {
+			out.println(result);
+		}
+		out.flush();
+	}
+
+	public static void main(String [] args) throws IOException, InterruptedException {
+		// Read the parameters, lists are separated by commas
+		Arguments arguments = new Arguments("SweepExecutor [--agents n,n..] [--modes mode,mode..] [--cooperation p,p..] [--seeds n,n..] [--replications n]"
+				+ " [--ticks n] [--threads n] [--output dir] [--results file]", args);
+		int [] agents = arguments.get("--agents", v -> Arrays.stream(v.split(",")).mapToInt(Integer::parseInt).toArray(),
+				new int [] { NetworkCuesBuilder.COUNT_AGENT });
+		AgentController.Mode [] modes = arguments.get("--modes", v -> Arrays.stream(v.split(",")).map(AgentController.Mode::valueOf).toArray(AgentController.Mode[]::new),
+				new AgentController.Mode [] { AgentController.LOGGING_MODE });
+		double [] cooperationPercentages = arguments.get("--cooperation", v -> Arrays.stream(v.split(",")).mapToDouble(Double::parseDouble).toArray(),
+				new double [] { Profile.COOPERATION_PERCENTAGE });
+		long [] seeds = arguments.get("--replications", v -> LongStream.rangeClosed(1, Long.parseLong(v)).toArray(), new long [] { 1 });
+		seeds = arguments.get("--seeds", v -> Arrays.stream(v.split(",")).mapToLong(Long::parseLong).toArray(), seeds);
+		long ticks = arguments.get("--ticks", Long::valueOf, (long) HeadlessRunner.DEFAULT_TICKS);
+		int threads = arguments.get("--threads", Integer::valueOf, Runtime.getRuntime().availableProcessors());
+		String output = arguments.get("--output", Function.identity(), OUTPUT_DIRECTORY);
+		String resultsFile = arguments.get("--results", Function.identity(), null);
+		arguments.checkUnknown();
+
+		List<Run> runs = createRuns(agents, modes, cooperationPercentages, seeds);
+		SweepExecutor executor = new SweepExecutor(NetworkCuesBuilder.NNET_PATH, output, threads);
+
+		long start = System.nanoTime();
+		List<Result> results = executor.execute(runs, ticks);
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		if (resultsFile != null) {
+			try (Writer writer = Files.newBufferedWriter(Paths.get(resultsFile))) {
+				writeResults(results, writer);
+			}
+		} else {
+			writeResults(results, new PrintWriter(System.out));
+		}
+		System.err.println(String.format("%d runs on %d threads in %.2f s", runs.size(), threads, seconds));
+		if (Metrics.ENABLED) {
+			System.err.print(Metrics.snapshot());
+		}
+	}
+}
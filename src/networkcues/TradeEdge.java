@@ -7,10 +7,30 @@ import repast.simphony.space.graph.RepastEdge;
 
 public class TradeEdge<T> extends RepastEdge<T> {
 
-	public static enum TradeResult { CC, CD, DC, DD };
+	public static enum TradeResult { CC, CD, DC, DD;
+		
+		/**
+		 * Result of the trade as seen by the agent that cooperates or not.
+		 */
+		public static TradeResult of(boolean cooperates, boolean partnerCooperates) {
+			return cooperates ? (partnerCooperates ? CC : CD) : (partnerCooperates ? DC : DD);
+		}
+	};
 	public static final double STRATEGY_MULTIPLIER = 1.5;
+	public static final boolean TRADE_LOGGING = false;
+	
+	// Pay off matrix and expected returns of the trade kernel, reused by every trade resolved on the same thread
+	private static final ThreadLocal<double [][]> SCRATCH = ThreadLocal.withInitial(() -> new double [2][4]);
+	
 	private double weight;
 	private double [] boosts;
+	private PairContext pair;
+	private TradeEdge.TradeResult a_tradeResult;
+	private TradeEdge.TradeResult b_tradeResult;
+	private TradeEdge.TradeResult a_tradeResultWithoutBoost;
+	private TradeEdge.TradeResult b_tradeResultWithoutBoost;
+	private double [] payoffMatrices;
+	private boolean completed;
 	
 	public TradeEdge(T source, T target, boolean directed, double weight) {
 		this.source = source;
@@ -18,32 +38,26 @@ public class TradeEdge<T> extends RepastEdge<T> {
 		this.directed = directed;
 		this.weight = weight;
 		this.boosts = null;
+		this.pair = null;
+		this.payoffMatrices = null;
+		this.completed = false;
 		
-		// Make the trade
-		this.makeTrade();
+		// Make the trade, unless the market resolves all the trades of the tick at once
+		if (!Market.DEFERRED_RESOLUTION) {
+			this.makeTrade();
+		}
 		
 	}
 	
-	private double [] calculatePayOffMatrix(Agent agent1, Agent agent2, boolean applyboosts) {
+	private double [] calculatePayOffMatrix(Agent agent1, Agent agent2, boolean applyboosts, double [] payoffMatrix) {
 		
 		// Get the boosts
-		// If appliedBoosts is null, then this is source -> target, else it's target -> source
-		double [] appliedBoosts = new double [4];
-		if (applyboosts) {
-			appliedBoosts = agent1.getBoosts(agent2);
-			if (this.boosts == null) {
-				this.boosts = new double [8];
-				this.boosts[0] = appliedBoosts[0];
-				this.boosts[1] = appliedBoosts[1];
-				this.boosts[2] = appliedBoosts[2];
-				this.boosts[3] = appliedBoosts[3];
-			} else {
-				this.boosts[4] = appliedBoosts[0];
-				this.boosts[5] = appliedBoosts[1];
-				this.boosts[6] = appliedBoosts[2];
-				this.boosts[7] = appliedBoosts[3];			
-			}			
-		}
+		// The first 4 boosts are for source -> target, the last 4 for target -> source
+		int boostOffset = agent1 == this.source ? 0 : 4;
+		double boost0 = applyboosts ? this.boosts[boostOffset] : 0;
+		double boost1 = applyboosts ? this.boosts[boostOffset + 1] : 0;
+		double boost2 = applyboosts ? this.boosts[boostOffset + 2] : 0;
+		double boost3 = applyboosts ? this.boosts[boostOffset + 3] : 0;
 		
 		// Calculate the default pay off matrices
 		double b_c = agent1.selling.benefit - agent1.selling.cost;
@@ -54,7 +68,7 @@ public class TradeEdge<T> extends RepastEdge<T> {
 		if(agent1.profile.useNetworkReciprocity()) {
 			// Get the number of neighbors and the distance to the agent
 			int k = agent1.neighborhoodSize;
-			double normalizedDistance = agent1.getNormalizedDistanceTo(agent2);
+			double normalizedDistance = this.pair.getNormalizedDistance();
 			
 			// Calculate H
 			double h = k > 2 ? ((b_c) * k + 2 * c) / ((k + 1) * (k - 2)) : b_c;
@@ -64,7 +78,7 @@ public class TradeEdge<T> extends RepastEdge<T> {
 			}
 
 			// apply the boost
-			normalizedDistance += 0.75 * appliedBoosts[0];
+			normalizedDistance += 0.75 * boost0;
 			normalizedDistance = normalizedDistance > 1 ? 1 : normalizedDistance;
 			
 			// Update the cost and benefit
@@ -75,10 +89,10 @@ public class TradeEdge<T> extends RepastEdge<T> {
 		// Kinship selection
 		if(agent1.profile.useKinshipSelection()) {
 			// Get the kinship
-			double r = agent1.getKinshipCoefficientTo(agent2);
+			double r = this.pair.getKinshipCoefficient();
 			
 			// apply the boost
-			r += (r == 0 ? 0.2 : 0.5) * appliedBoosts[1];
+			r += (r == 0 ? 0.2 : 0.5) * boost1;
 			r = r > 1 ? 1 : r;
 			
 			// Update the cost and benefit
@@ -94,7 +108,7 @@ public class TradeEdge<T> extends RepastEdge<T> {
 			
 			// apply the boost
 //			System.out.print("a: " + String.format("%.2f", a) +  ">" +  String.format("%.2f", a + (0.75 * appliedBoosts[2])) );
-			a += 0.75 * appliedBoosts[2];
+			a += 0.75 * boost2;
 			a = a > 1 ? 1 : a;
 //			System.out.println(">" + String.format("%.2f", a) + " ~ " + String.format("%.2f", (a *b_c)));
 
@@ -106,11 +120,11 @@ public class TradeEdge<T> extends RepastEdge<T> {
 		// Indirect reciprocity
 		if(agent1.profile.useIndirectReciprocity()) {
 			// Get the reputation of the other agent
-			double q = agent1.getReputationOf(agent2);
+			double q = agent1.getReputationOf(agent2, this.pair);
 			
 			// apply the boost
 //			System.out.print("q: " + String.format("%.2f", q) +  ">" +  String.format("%.2f", q + (0.75 * appliedBoosts[2])) );
-			q += 0.75 * appliedBoosts[3];
+			q += 0.75 * boost3;
 			q = q > 1 ? 1 : q;
 //			System.out.println(">" + String.format("%.2f", q) + " ~ " + String.format("%.2f", (1-q)));
 
@@ -120,7 +134,6 @@ public class TradeEdge<T> extends RepastEdge<T> {
 		}
 
 		// Update the payoffMatrix
-		double [] payoffMatrix = new double [4]; 
 		payoffMatrix[0] = b_c;
 		payoffMatrix[1] = c;
 		payoffMatrix[2] = b;
@@ -129,39 +142,58 @@ public class TradeEdge<T> extends RepastEdge<T> {
 		return payoffMatrix;
 	}
 
+	/**
+	 * Decides whether the agent cooperates. The expected returns (cooperate, defect, and both after applying the strategy)
+	 * are written into the given array.
+	 */
+	public static boolean cooperates(Agent a, double [] payoffMatrix, TradeEdge.TradeResult lastTradeResult, double [] expectedReturns) {
+
+		// Determine the expected return for the agent
+		double a_c1 = (payoffMatrix[0] + payoffMatrix[1] + (0.85 * a.selling.cost)) / 2;
+		double a_d1 = (payoffMatrix[2] + payoffMatrix[3] - (0.85 * a.selling.cost)) / 2;
+
+		// Apply the strategy preference to the expected return
+		double a_c2 = a_c1;
+		double a_d2 = a_d1;
+		
+		switch(a.profile.getStrategy()) {
+			case COOPERATE:
+				a_c2 = a_c1 > 0 ? a_c1 * TradeEdge.STRATEGY_MULTIPLIER : a_c1 / TradeEdge.STRATEGY_MULTIPLIER;
+				break;
+			case DEFECT:
+				a_d2 = a_d1 > 0 ? a_d1 * TradeEdge.STRATEGY_MULTIPLIER : a_d1 / TradeEdge.STRATEGY_MULTIPLIER;
+				break;
+			case TITFORTAT:
+				if (lastTradeResult == TradeEdge.TradeResult.CC || lastTradeResult == TradeEdge.TradeResult.DC) {
+					a_c2 = a_c1 > 0 ? a_c1 * TradeEdge.STRATEGY_MULTIPLIER : a_c1 / TradeEdge.STRATEGY_MULTIPLIER;						
+				} else {
+					a_d2 = a_d1 > 0 ? a_d1 * TradeEdge.STRATEGY_MULTIPLIER : a_d1 / TradeEdge.STRATEGY_MULTIPLIER;						
+				}
+			default:
+				break;
+		}
+		
+		expectedReturns[0] = a_c1;
+		expectedReturns[1] = a_d1;
+		expectedReturns[2] = a_c2;
+		expectedReturns[3] = a_d2;
+		
+		// Determine whether or not to cooperate based on Greedy mentality (i.e. choose highest expected return)
+		return (a_c2 > a_d2 ? true : a_c2 == a_d2 ? true : false);
+//			boolean a_cooperate = (a_c2 > a_d2 ? true : a_c2 == a_d2 ? RandomHelper.nextDouble() > 0.55 : false);
+	}
+
 	public String[] chooseAction(Agent a, double [] payoffMatrix, TradeEdge.TradeResult lastTradeResult) {
 		String [] logOutput = new String [5];
 		
 		if(a != null && payoffMatrix != null && payoffMatrix.length == 4) {
 
-			// Determine the expected return for the agent
-			double a_c1 = (payoffMatrix[0] + payoffMatrix[1] + (0.85 * a.selling.cost)) / 2;
-			double a_d1 = (payoffMatrix[2] + payoffMatrix[3] - (0.85 * a.selling.cost)) / 2;
-
-			// Apply the strategy preference to the expected return
-			double a_c2 = a_c1;
-			double a_d2 = a_d1;
-			
-			switch(a.profile.getStrategy()) {
-				case COOPERATE:
-					a_c2 = a_c1 > 0 ? a_c1 * TradeEdge.STRATEGY_MULTIPLIER : a_c1 / TradeEdge.STRATEGY_MULTIPLIER;
-					break;
-				case DEFECT:
-					a_d2 = a_d1 > 0 ? a_d1 * TradeEdge.STRATEGY_MULTIPLIER : a_d1 / TradeEdge.STRATEGY_MULTIPLIER;
-					break;
-				case TITFORTAT:
-					if (lastTradeResult == TradeEdge.TradeResult.CC || lastTradeResult == TradeEdge.TradeResult.DC) {
-						a_c2 = a_c1 > 0 ? a_c1 * TradeEdge.STRATEGY_MULTIPLIER : a_c1 / TradeEdge.STRATEGY_MULTIPLIER;						
-					} else {
-						a_d2 = a_d1 > 0 ? a_d1 * TradeEdge.STRATEGY_MULTIPLIER : a_d1 / TradeEdge.STRATEGY_MULTIPLIER;						
-					}
-				default:
-					break;
-			}
-			
-			// Determine whether or not to cooperate based on Greedy mentality (i.e. choose highest expected return)
-			boolean a_cooperate = (a_c2 > a_d2 ? true : a_c2 == a_d2 ? true : false);
-//			boolean a_cooperate = (a_c2 > a_d2 ? true : a_c2 == a_d2 ? RandomHelper.nextDouble() > 0.55 : false);
+			double [] expectedReturns = new double [4];
+			boolean a_cooperate = cooperates(a, payoffMatrix, lastTradeResult, expectedReturns);
+			double a_c1 = expectedReturns[0];
+			double a_d1 = expectedReturns[1];
+			double a_c2 = expectedReturns[2];
+			double a_d2 = expectedReturns[3];
 
 			// Log output
 			String a_profile = (a.profile.useNetworkReciprocity() ? "1": "0");
@@ -185,56 +217,126 @@ public class TradeEdge<T> extends RepastEdge<T> {
 	} 
 	
 	public void makeTrade() {
+		long start = Metrics.start();
+		
 		// Calculate the pay off matrix
-		if (Agent.class.isInstance(this.source) && Agent.class.isInstance(this.target)) { 
+		if (this.isTrade()) { 
 
-			Agent a = (Agent)this.source;
-			Agent b = (Agent)this.target;
-			
-			// Determine the node choices
-			String [] logOutput1 = this.chooseAction(a, calculatePayOffMatrix(a, b, true), a.getLastTradeResultWithAgent(b));
-			String [] logOutput2 = this.chooseAction(b, calculatePayOffMatrix(b, a, true), b.getLastTradeResultWithAgent(a));
-			String [] logOutputWithoutBoost1 = this.chooseAction(a, calculatePayOffMatrix(a, b, false), a.getLastTradeResultWithAgent(b));
-			String [] logOutputWithoutBoost2 = this.chooseAction(b, calculatePayOffMatrix(b, a, false), b.getLastTradeResultWithAgent(a));
-						
-			// Determine the trade results
-			TradeEdge.TradeResult a_tradeResult = convertToTradeResult(logOutput1[1], logOutput2[1]);
-			TradeEdge.TradeResult b_tradeResult = convertToTradeResult(logOutput2[1], logOutput1[1]);
-			TradeEdge.TradeResult a_tradeResultWithoutBoost = convertToTradeResult(logOutputWithoutBoost1[1], logOutputWithoutBoost2[1]);
-			TradeEdge.TradeResult b_tradeResultWithoutBoost = convertToTradeResult(logOutputWithoutBoost2[1], logOutputWithoutBoost1[1]);
-			
-			// Complete the trade
-			// The first 4 elements of appliedBoosts are for source->target, the last 4 elements are for target->source
-			a.completeTrade(b, a_tradeResult, a_tradeResultWithoutBoost, Arrays.copyOfRange(this.boosts, 0, 4));
-			b.completeTrade(a, b_tradeResult, b_tradeResultWithoutBoost, Arrays.copyOfRange(this.boosts, 4, 8));
-			
-			// Log the node choice
-//			if(AgentController.logging_record > AgentController.LOGGING_START) {
-//				String boostString = "|";
-//				for (int i=0; i < this.boosts.length; i++) { boostString += String.format("%.2f", boosts[i]) + "|" ; }
-//				System.out.print(logOutput1[0] + " <-> " + logOutput2[0] + " " + logOutput1[1] + logOutput2[1] + " => " + logOutputWithoutBoost1[2] + "<>" + logOutputWithoutBoost2[2]);
-//				System.out.print( " ~ " + logOutput1[2] + "<>" + logOutput2[2]);
-//				System.out.println(" ~ " + logOutput1[3] + "<>" + logOutput2[3] + " ~ " + logOutput1[4] + "<>" + logOutput2[4] + " ~ " + boostString);
-//				
-//			}
+			this.prepareTrade();
+			this.resolveTrade();
+			this.completeTrade();
 			
 		} else {
 			System.out.println("One or more of the nodes is not an agent.");
 		}
+		
+		Metrics.MAKE_TRADE.stop(start);
+	}
+	
+	public boolean isTrade() {
+		return Agent.class.isInstance(this.source) && Agent.class.isInstance(this.target);
+	}
+	
+	public boolean isCompleted() {
+		return this.completed;
 	}
 	
-	private TradeEdge.TradeResult convertToTradeResult(String a_action, String b_action){
+	/**
+	 * Resolves the pair of agents for the rest of the trade and gets the boosts of both agents. This asks the controller,
+	 * so it has to run on the simulation thread.
+	 */
+	public void prepareTrade() {
+		Agent a = (Agent)this.source;
+		Agent b = (Agent)this.target;
 		
-		TradeEdge.TradeResult tradeResult;
+		this.pair = a.getPairContext(b);
+		this.boosts = new double [8];
+		System.arraycopy(a.getBoosts(b, this.pair), 0, this.boosts, 0, 4);
+		System.arraycopy(b.getBoosts(a, this.pair), 0, this.boosts, 4, 4);
 		
-		if("C".equals(a_action)) {
-			tradeResult = "C".equals(b_action) ? TradeEdge.TradeResult.CC : TradeEdge.TradeResult.CD;
-		} else {
-			tradeResult = "C".equals(b_action) ? TradeEdge.TradeResult.DC : TradeEdge.TradeResult.DD;
+		// Keep the pay off matrices for the journal
+		if (a.getJournal() != null) {
+			this.payoffMatrices = new double [16];
 		}
+	}
+	
+	/**
+	 * Determines the actions of both agents. This only reads the agents and their pair, so trades between different
+	 * agents can be resolved in parallel.
+	 */
+	public void resolveTrade() {
+		Agent a = (Agent)this.source;
+		Agent b = (Agent)this.target;
 		
-		return tradeResult;
+		double [][] scratch = SCRATCH.get();
+		double [] payoffMatrix = scratch[0];
+		double [] expectedReturns = scratch[1];
+		TradeEdge.TradeResult a_lastTradeResult = a.getLastTradeResultWithAgent(b, this.pair);
+		TradeEdge.TradeResult b_lastTradeResult = b.getLastTradeResultWithAgent(a, this.pair);
 		
+		// Determine the node choices
+		boolean a_cooperates = cooperates(a, this.calculatePayOffMatrix(a, b, true, payoffMatrix), a_lastTradeResult, expectedReturns);
+		this.keepPayOffMatrix(0, payoffMatrix);
+		boolean b_cooperates = cooperates(b, this.calculatePayOffMatrix(b, a, true, payoffMatrix), b_lastTradeResult, expectedReturns);
+		this.keepPayOffMatrix(1, payoffMatrix);
+		boolean a_cooperatesWithoutBoost = cooperates(a, this.calculatePayOffMatrix(a, b, false, payoffMatrix), a_lastTradeResult, expectedReturns);
+		this.keepPayOffMatrix(2, payoffMatrix);
+		boolean b_cooperatesWithoutBoost = cooperates(b, this.calculatePayOffMatrix(b, a, false, payoffMatrix), b_lastTradeResult, expectedReturns);
+		this.keepPayOffMatrix(3, payoffMatrix);
+					
+		// Determine the trade results
+		this.a_tradeResult = TradeEdge.TradeResult.of(a_cooperates, b_cooperates);
+		this.b_tradeResult = TradeEdge.TradeResult.of(b_cooperates, a_cooperates);
+		this.a_tradeResultWithoutBoost = TradeEdge.TradeResult.of(a_cooperatesWithoutBoost, b_cooperatesWithoutBoost);
+		this.b_tradeResultWithoutBoost = TradeEdge.TradeResult.of(b_cooperatesWithoutBoost, a_cooperatesWithoutBoost);
+		
+		// Log the node choice once the controller is past its warm-up
+		if (TradeEdge.TRADE_LOGGING && a.isSupervisorWarmedUp()) {
+			this.logTrade(a, b, a_lastTradeResult, b_lastTradeResult);
+		}
+	}
+	
+	private void keepPayOffMatrix(int index, double [] payoffMatrix) {
+		if (this.payoffMatrices != null) {
+			System.arraycopy(payoffMatrix, 0, this.payoffMatrices, index * 4, 4);
+		}
+	}
+	
+	private void logTrade(Agent a, Agent b, TradeEdge.TradeResult a_lastTradeResult, TradeEdge.TradeResult b_lastTradeResult) {
+		String [] logOutput1 = this.chooseAction(a, calculatePayOffMatrix(a, b, true, new double [4]), a_lastTradeResult);
+		String [] logOutput2 = this.chooseAction(b, calculatePayOffMatrix(b, a, true, new double [4]), b_lastTradeResult);
+		String [] logOutputWithoutBoost1 = this.chooseAction(a, calculatePayOffMatrix(a, b, false, new double [4]), a_lastTradeResult);
+		String [] logOutputWithoutBoost2 = this.chooseAction(b, calculatePayOffMatrix(b, a, false, new double [4]), b_lastTradeResult);
+		
+		String boostString = "|";
+		for (int i=0; i < this.boosts.length; i++) { boostString += String.format("%.2f", boosts[i]) + "|" ; }
+		System.out.print(logOutput1[0] + " <-> " + logOutput2[0] + " " + logOutput1[1] + logOutput2[1] + " => " + logOutputWithoutBoost1[2] + "<>" + logOutputWithoutBoost2[2]);
+		System.out.print( " ~ " + logOutput1[2] + "<>" + logOutput2[2]);
+		System.out.println(" ~ " + logOutput1[3] + "<>" + logOutput2[3] + " ~ " + logOutput1[4] + "<>" + logOutput2[4] + " ~ " + boostString);
+	}
+
+	
+	/**
+	 * Records the trade with both agents, which rates them and trains the controller.
+	 */
+	public void completeTrade() {
+		Agent a = (Agent)this.source;
+		Agent b = (Agent)this.target;
+		
+		// Complete the trade
+		// The first 4 elements of appliedBoosts are for source->target, the last 4 elements are for target->source
+		a.completeTrade(b, this.pair, this.a_tradeResult, this.a_tradeResultWithoutBoost, Arrays.copyOfRange(this.boosts, 0, 4));
+		b.completeTrade(a, this.pair, this.b_tradeResult, this.b_tradeResultWithoutBoost, Arrays.copyOfRange(this.boosts, 4, 8));
+		this.completed = true;
+		Metrics.TRADES.increment();
+		
+		// Journal the trade
+		TradeJournal journal = a.getJournal();
+		if (journal != null && this.payoffMatrices != null) {
+			journal.record(a, b, this.a_tradeResult, this.a_tradeResultWithoutBoost, this.b_tradeResult, this.b_tradeResultWithoutBoost,
+					this.payoffMatrices, this.boosts, a.lastPrediction, b.lastPrediction);
+			this.payoffMatrices = null;
+		}
 	}
 	
 	public double getWeight() {
@@ -0,0 +1,295 @@
+package networkcues;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import repast.simphony.engine.environment.RunEnvironment;
+import repast.simphony.engine.schedule.ScheduleParameters;
+import repast.simphony.engine.schedule.ScheduledMethod;
+
+/**
+ * Append-only binary journal with one fixed-size record per trade. Records are written straight into a memory-mapped
+ * region of the file, and the file grows one region at a time. The record count goes into the header on close, so a
+ * journal that wasn't closed can still be read up to its first empty record.
+ *
+ * Layout of a record (big-endian, RECORD_SIZE bytes):
+ * tick (long), ids of a and b (int, int), groups of a and b (int, int), profiles of a and b (byte, byte), results of a
+ * with and without boosts and of b with and without boosts (4 bytes), 2 bytes padding, payoff matrices of a and b with
+ * boosts and of a and b without boosts (16 doubles), boosts source->target and target->source (8 doubles), predictions
+ * of the controller after a and b (double, double, NaN when there was none).
+ *
+ * A profile byte holds the network, kinship, group and indirect flags in bits 0 to 3 and the strategy in bits 4 and 5.
+ */
+public class TradeJournal {
+
+	public static final int MAGIC = 0x4E43544A;
+	public static final int VERSION = 1;
+	public static final int HEADER_SIZE = 16;
+	public static final int RECORD_SIZE = 240;
+
+	// Number of records mapped at a time
+	public static final int RECORDS_PER_REGION = 1 << 16;
+
+	private static final String [] COLUMNS = { "tick", "a_id", "b_id", "a_group", "b_group", "a_profile", "b_profile",
+			"a_result", "a_result_without_boost", "b_result", "b_result_without_boost" };
+
+	private final Path path;
+	private final FileChannel channel;
+	private MappedByteBuffer region;
+	private long regionStart;
+	private long records;
+	private long tick;
+
+	public TradeJournal(String path) {
+		this(path, 0);
+	}
+
+	/**
+	 * Opens the journal to continue after its first records, e.g. from a checkpoint. Any records after those are
+	 * overwritten. With no records the journal starts empty.
+	 */
+	public TradeJournal(String path, long records) {
+		this.path = Paths.get(path);
+		try {
+			if (this.path.getParent() != null) {
+				Files.createDirectories(this.path.getParent());
+			}
+			if (records == 0) {
+				this.channel = FileChannel.open(this.path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+						StandardOpenOption.READ, StandardOpenOption.WRITE);
+			} else {
+				this.channel = FileChannel.open(this.path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+				if (this.channel.size() < HEADER_SIZE + records * RECORD_SIZE) {
+					this.channel.close();
+					throw new IOException("The trade journal " + path + " has fewer than " + records + " records.");
+				}
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException("Can't open the trade journal " + path + ".", e);
+		}
+		this.records = records;
+		this.tick = -1;
+
+		// Map the region the next record goes into
+		long offset = HEADER_SIZE + records * RECORD_SIZE;
+		this.mapRegion(offset + RECORD_SIZE > HEADER_SIZE + (long) RECORDS_PER_REGION * RECORD_SIZE ? offset : 0);
+		this.writeHeader();
+	}
+
+	/**
+	 * Sets the tick of the records that follow, for runs without a Repast schedule.
+	 */
+	public void setTick(long tick) {
+		this.tick = tick;
+	}
+
+	public long getRecords() {
+		return this.records;
+	}
+
+	public Path getPath() {
+		return this.path;
+	}
+
+	/**
+	 * Appends a trade. The payoff matrices are a with boosts, b with boosts, a without boosts and b without boosts.
+	 * Only call this from the simulation thread.
+	 */
+	public void record(Agent a, Agent b, TradeEdge.TradeResult a_result, TradeEdge.TradeResult a_resultWithoutBoost,
+			TradeEdge.TradeResult b_result, TradeEdge.TradeResult b_resultWithoutBoost, double [] payoffMatrices,
+			double [] boosts, double a_prediction, double b_prediction) {
+
+		long offset = HEADER_SIZE + this.records * RECORD_SIZE;
+		if (offset + RECORD_SIZE > this.regionStart + this.region.capacity()) {
+			this.mapRegion(offset);
+		}
+
+		MappedByteBuffer buffer = this.region;
+		buffer.position((int) (offset - this.regionStart));
+		buffer.putLong(this.currentTick());
+		buffer.putInt(a.id);
+		buffer.putInt(b.id);
+		buffer.putInt(a.profile.getGroupID());
+		buffer.putInt(b.profile.getGroupID());
+		buffer.put(encodeProfile(a.profile));
+		buffer.put(encodeProfile(b.profile));
+		buffer.put((byte) a_result.ordinal());
+		buffer.put((byte) a_resultWithoutBoost.ordinal());
+		buffer.put((byte) b_result.ordinal());
+		buffer.put((byte) b_resultWithoutBoost.ordinal());
+		buffer.putShort((short) 0);
+		for (int i = 0; i < 16; i++) {
+			buffer.putDouble(payoffMatrices[i]);
+		}
+		for (int i = 0; i < 8; i++) {
+			buffer.putDouble(boosts[i]);
+		}
+		buffer.putDouble(a_prediction);
+		buffer.putDouble(b_prediction);
+
+		this.records++;
+	}
+
+	/**
+	 * Writes the record count, flushes the mapped region and cuts the file back to the records written.
+	 */
+	@ScheduledMethod(start = ScheduleParameters.END)
+	public void close() {
+		if (!this.channel.isOpen()) {
+			return;
+		}
+		this.writeHeader();
+		this.region.force();
+		try {
+			this.channel.truncate(HEADER_SIZE + this.records * RECORD_SIZE);
+		} catch (IOException e) {
+			// The mapping can keep the file from shrinking on some platforms, the header count is enough to read it
+		}
+		try {
+			this.channel.close();
+		} catch (IOException e) {
+			throw new UncheckedIOException("Can't close the trade journal " + this.path + ".", e);
+		}
+	}
+
+	private long currentTick() {
+		if (this.tick >= 0) {
+			return this.tick;
+		}
+		if (RunEnvironment.getInstance() != null && RunEnvironment.getInstance().getCurrentSchedule() != null) {
+			return (long) RunEnvironment.getInstance().getCurrentSchedule().getTickCount();
+		}
+		return 0;
+	}
+
+	private void mapRegion(long start) {
+		try {
+			if (this.region != null) {
+				this.region.force();
+			}
+			long size = start == 0 ? HEADER_SIZE + (long) RECORDS_PER_REGION * RECORD_SIZE : (long) RECORDS_PER_REGION * RECORD_SIZE;
+			this.region = this.channel.map(FileChannel.MapMode.READ_WRITE, start, size);
+			this.regionStart = start;
+		} catch (IOException e) {
+			throw new UncheckedIOException("Can't grow the trade journal " + this.path + ".", e);
+		}
+	}
+
+	private void writeHeader() {
+		try {
+			MappedByteBuffer header = this.regionStart == 0 ? this.region : this.channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+			header.putInt(0, MAGIC);
+			header.putInt(4, VERSION);
+			header.putInt(8, RECORD_SIZE);
+			header.putInt(12, (int) Math.min(this.records, Integer.MAX_VALUE));
+			header.force();
+		} catch (IOException e) {
+			throw new UncheckedIOException("Can't write the header of the trade journal " + this.path + ".", e);
+		}
+	}
+
+	private static byte encodeProfile(Profile profile) {
+		int flags = (profile.useNetworkReciprocity() ? 1 : 0)
+				| (profile.useKinshipSelection() ? 2 : 0)
+				| (profile.useGroupSelection() ? 4 : 0)
+				| (profile.useIndirectReciprocity() ? 8 : 0);
+		return (byte) (flags | profile.getStrategy().ordinal() << 4);
+	}
+
+	/**
+	 * Profile in the notation of the trade log, e.g. 1010T for network and group with tit for tat.
+	 */
+	private static String decodeProfile(byte profile) {
+		String flags = ((profile & 1) != 0 ? "1" : "0") + ((profile & 2) != 0 ? "1" : "0") + ((profile & 4) != 0 ? "1" : "0") + ((profile & 8) != 0 ? "1" : "0");
+		return flags + "CDTN".charAt((profile >> 4) & 3);
+	}
+
+	/**
+	 * Writes the records of a journal as CSV, one line per trade, and returns how many there were.
+	 */
+	public static long exportToCsv(String journalPath, Writer writer) throws IOException {
+		PrintWriter out = new PrintWriter(writer);
+		TradeEdge.TradeResult [] results = TradeEdge.TradeResult.values();
+
+		// Header line
+		StringBuilder line = new StringBuilder(String.join(",", COLUMNS));
+		for (String matrix : new String [] { "a_payoff", "b_payoff", "a_payoff_without_boost", "b_payoff_without_boost" }) {
+			for (int i = 0; i < 4; i++) {
+				line.append(',').append(matrix).append(i);
+			}
+		}
+		for (int i = 0; i < 8; i++) {
+			line.append(",boost").append(i);
+		}
+		line.append(",a_prediction,b_prediction");
+		out.println(line);
+
+		long count = 0;
+		try (FileChannel channel = FileChannel.open(Paths.get(journalPath), StandardOpenOption.READ)) {
+			MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+			if (header.getInt(0) != MAGIC || header.getInt(8) != RECORD_SIZE) {
+				throw new IOException(journalPath + " is not a trade journal.");
+			}
+
+			// Use the count from the header, or read up to the first empty record if the journal wasn't closed
+			long available = (channel.size() - HEADER_SIZE) / RECORD_SIZE;
+			long records = header.getInt(12) > 0 ? Math.min(header.getInt(12), available) : available;
+
+			for (long start = 0; start < records; start += RECORDS_PER_REGION) {
+				int n = (int) Math.min(RECORDS_PER_REGION, records - start);
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + start * RECORD_SIZE, (long) n * RECORD_SIZE);
+
+				for (int r = 0; r < n; r++) {
+					long tick = buffer.getLong();
+					int a_id = buffer.getInt();
+					if (tick == 0 && a_id == 0 && buffer.getInt(buffer.position()) == 0) {
+						return count;
+					}
+
+					line.setLength(0);
+					line.append(tick).append(',').append(a_id).append(',').append(buffer.getInt());
+					line.append(',').append(buffer.getInt()).append(',').append(buffer.getInt());
+					line.append(',').append(decodeProfile(buffer.get())).append(',').append(decodeProfile(buffer.get()));
+					for (int i = 0; i < 4; i++) {
+						line.append(',').append(results[buffer.get()]);
+					}
+					buffer.getShort();
+					for (int i = 0; i < 26; i++) {
+						line.append(',').append(buffer.getDouble());
+					}
+					out.println(line);
+					count++;
+				}
+			}
+		} finally {
+			out.flush();
+		}
+		return count;
+	}
+
+	/**
+	 * Exports a journal to CSV: TradeJournal <journal> [<csv>], writing to standard output without a CSV path.
+	 */
+	public static void main(String [] args) throws IOException {
+		if (args.length < 1) {
+			System.err.println("Usage: TradeJournal <journal> [<csv>]");
+			System.exit(1);
+		}
+
+		if (args.length > 1) {
+			try (Writer writer = Files.newBufferedWriter(Paths.get(args[1]))) {
+				System.err.println(exportToCsv(args[0], writer) + " trades exported to " + args[1]);
+			}
+		} else {
+			exportToCsv(args[0], new PrintWriter(System.out));
+		}
+	}
+}
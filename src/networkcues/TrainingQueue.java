@@ -0,0 +1,83 @@
+package networkcues;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded lock-free queue of training patterns from a single producer (the simulation) to a single consumer (the trainer).
+ * Patterns are copied into a ring of preallocated slots, and a pattern that doesn't fit is dropped instead of waiting.
+ */
+public class TrainingQueue {
+
+	public static final int INPUTS = NeuralNetInference.INPUTS;
+
+	private final int mask;
+	private final double [] inputs;
+	private final double [] outputs;
+
+	// head is the next slot to read (written by the consumer), tail the next slot to write (written by the producer)
+	private final AtomicLong head;
+	private final AtomicLong tail;
+	private volatile long dropped;
+
+	/**
+	 * Creates a queue that holds at least the given number of patterns (rounded up to a power of two).
+	 */
+	public TrainingQueue(int capacity) {
+		int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+		this.mask = size - 1;
+		this.inputs = new double [size * INPUTS];
+		this.outputs = new double [size];
+		this.head = new AtomicLong();
+		this.tail = new AtomicLong();
+		this.dropped = 0;
+	}
+
+	public int capacity() {
+		return this.mask + 1;
+	}
+
+	public int size() {
+		return (int) (this.tail.get() - this.head.get());
+	}
+
+	public long getDropped() {
+		return this.dropped;
+	}
+
+	/**
+	 * Adds the pattern, or drops it if the queue is full. Only call this from the producer thread.
+	 */
+	public boolean offer(double [] input, double output) {
+		long t = this.tail.get();
+		if (t - this.head.get() > this.mask) {
+			this.dropped++;
+			return false;
+		}
+
+		int slot = (int) (t & this.mask);
+		System.arraycopy(input, 0, this.inputs, slot * INPUTS, INPUTS);
+		this.outputs[slot] = output;
+
+		// Publish the slot after it has been written
+		this.tail.lazySet(t + 1);
+		return true;
+	}
+
+	/**
+	 * Moves up to max patterns into the given rows and returns how many there were. Only call this from the consumer thread.
+	 */
+	public int drainTo(double [][] inputs, double [][] outputs, int max) {
+		long h = this.head.get();
+		int n = (int) Math.min(max, this.tail.get() - h);
+
+		for (int k = 0; k < n; k++) {
+			int slot = (int) ((h + k) & this.mask);
+			System.arraycopy(this.inputs, slot * INPUTS, inputs[k], 0, INPUTS);
+			outputs[k][0] = this.outputs[slot];
+		}
+
+		// Hand the slots back to the producer after they have been read
+		this.head.lazySet(h + n);
+		return n;
+	}
+}